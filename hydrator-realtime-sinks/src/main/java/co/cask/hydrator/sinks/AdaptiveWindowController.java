@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adjusts the number of messages the {@link KafkaProducer} sink sends before waiting for acknowledgments,
+ * from the ack latency and throughput observed by the send callbacks.
+ *
+ * <p>Once per interval the p99 ack latency is compared with the configured bounds. Above the upper bound
+ * the window is halved; below the lower bound it grows by a quarter. Between the bounds the window keeps
+ * moving in the direction of its last change while throughput improves, and turns around when throughput
+ * drops. Acks are recorded from the producer's callback thread; the window is updated by the writing
+ * thread.</p>
+ */
+final class AdaptiveWindowController {
+  static final long INTERVAL_MS = 1000L;
+
+  private final int minWindow;
+  private final int maxWindow;
+  private final long lowLatencyMicros;
+  private final long highLatencyMicros;
+
+  private final ValueHistogram latencies = new ValueHistogram();
+  private final AtomicLong acks = new AtomicLong();
+
+  private int window;
+
+  // Direction of the last change: 1 growing, -1 shrinking.
+  private int direction = 1;
+  private double lastThroughput;
+  private long lastLatencyMicros;
+  private long intervalStart;
+
+  AdaptiveWindowController(int minWindow, int maxWindow, long lowLatencyMicros, long highLatencyMicros,
+                           long now) {
+    this.minWindow = minWindow;
+    this.maxWindow = maxWindow;
+    this.lowLatencyMicros = lowLatencyMicros;
+    this.highLatencyMicros = highLatencyMicros;
+    this.window = maxWindow;
+    this.intervalStart = now;
+  }
+
+  /**
+   * Records the ack latency of one message. Safe to call from any thread.
+   */
+  void recordAck(long latencyMicros) {
+    latencies.record(latencyMicros);
+    acks.incrementAndGet();
+  }
+
+  /**
+   * Returns the number of messages to send before waiting for acknowledgments.
+   */
+  int getWindow() {
+    return window;
+  }
+
+  /**
+   * Returns the p99 ack latency of the last completed interval.
+   */
+  long getLatencyMicros() {
+    return lastLatencyMicros;
+  }
+
+  /**
+   * Returns the acks per second of the last completed interval.
+   */
+  double getThroughput() {
+    return lastThroughput;
+  }
+
+  /**
+   * Updates the window if an interval has passed since the last update and messages were acknowledged.
+   *
+   * @param now current time in milliseconds.
+   * @return true if an interval was completed.
+   */
+  boolean update(long now) {
+    long elapsed = now - intervalStart;
+    if (elapsed < INTERVAL_MS || acks.get() == 0) {
+      return false;
+    }
+    double throughput = acks.getAndSet(0) * 1000d / elapsed;
+    long latency = latencies.drain().getPercentile(99);
+    intervalStart = now;
+
+    if (latency > highLatencyMicros) {
+      direction = -1;
+      window = Math.max(minWindow, window / 2);
+    } else if (latency < lowLatencyMicros) {
+      direction = 1;
+      window = grow(window);
+    } else {
+      if (throughput < lastThroughput * 0.95) {
+        direction = -direction;
+      }
+      window = direction > 0 ? grow(window) : Math.max(minWindow, window - Math.max(1, window / 4));
+    }
+    lastThroughput = throughput;
+    lastLatencyMicros = latency;
+    return true;
+  }
+
+  private int grow(int window) {
+    return (int) Math.min(maxWindow, window + Math.max(1L, window / 4));
+  }
+}
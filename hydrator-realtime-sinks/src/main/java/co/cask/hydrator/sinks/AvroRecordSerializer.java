@@ -0,0 +1,361 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import co.cask.cdap.api.data.format.StructuredRecord;
+import co.cask.cdap.api.data.format.UnexpectedFormatException;
+import co.cask.cdap.api.data.schema.Schema;
+import com.google.common.collect.Maps;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes {@link StructuredRecord}s of a single schema into Avro binary.
+ *
+ * <p>Every message starts with a 10 byte header: the two marker bytes {@code 0xC3 0x01} followed by
+ * the little endian CRC-64-AVRO fingerprint of the Avro schema's parsing canonical form, as in the
+ * Avro single object encoding. Consumers use the fingerprint to look up the writer schema.</p>
+ *
+ * <p>The schema is compiled once into a tree of writers that encode values straight from the
+ * record, without building an intermediate Avro record. Instances are not thread safe.</p>
+ */
+final class AvroRecordSerializer {
+  static final int HEADER_SIZE = 10;
+  private static final byte MARKER_0 = (byte) 0xC3;
+  private static final byte MARKER_1 = (byte) 0x01;
+
+  // Schema the serializer was built for.
+  private final Schema schema;
+
+  // Avro schema derived from the record schema.
+  private final org.apache.avro.Schema avroSchema;
+
+  // Marker bytes followed by the schema fingerprint.
+  private final byte[] header;
+
+  // Writer for the top level record.
+  private final ValueWriter writer;
+
+  // Buffer the encoder writes into, reused across records.
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+
+  // Encoder reused across records.
+  private BinaryEncoder encoder;
+
+  AvroRecordSerializer(Schema schema) {
+    this.schema = schema;
+    this.avroSchema = new org.apache.avro.Schema.Parser().parse(schema.toString());
+    long fingerprint = SchemaNormalization.parsingFingerprint64(avroSchema);
+    this.header = new byte[HEADER_SIZE];
+    header[0] = MARKER_0;
+    header[1] = MARKER_1;
+    for (int i = 0; i < 8; i++) {
+      header[2 + i] = (byte) (fingerprint >>> (8 * i));
+    }
+    this.writer = compile(schema, Maps.<String, RecordWriter>newHashMap());
+  }
+
+  /**
+   * Returns the schema this serializer was built for.
+   */
+  Schema getSchema() {
+    return schema;
+  }
+
+  /**
+   * Returns the Avro schema the records are written with.
+   */
+  org.apache.avro.Schema getAvroSchema() {
+    return avroSchema;
+  }
+
+  /**
+   * Returns the fingerprint of the Avro schema, as written in the message header.
+   */
+  long getFingerprint() {
+    return ByteBuffer.wrap(header, 2, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+  }
+
+  /**
+   * Serializes the record, prefixed with the schema fingerprint header.
+   */
+  byte[] serialize(StructuredRecord record) throws IOException {
+    buffer.reset();
+    buffer.write(header);
+    encoder = EncoderFactory.get().binaryEncoder(buffer, encoder);
+    writer.write(record, encoder);
+    encoder.flush();
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Writes a value of a given schema to an Avro encoder.
+   */
+  private interface ValueWriter {
+    void write(Object value, Encoder encoder) throws IOException;
+  }
+
+  /**
+   * Writes the fields of a record in schema order.
+   */
+  private static final class RecordWriter implements ValueWriter {
+    private String[] fieldNames;
+    private ValueWriter[] fieldWriters;
+
+    @Override
+    public void write(Object value, Encoder encoder) throws IOException {
+      StructuredRecord record = (StructuredRecord) value;
+      for (int i = 0; i < fieldNames.length; i++) {
+        fieldWriters[i].write(record.get(fieldNames[i]), encoder);
+      }
+    }
+  }
+
+  private static ValueWriter compile(final Schema schema, Map<String, RecordWriter> records) {
+    switch (schema.getType()) {
+      case NULL:
+        return new ValueWriter() {
+          @Override
+          public void write(Object value, Encoder encoder) throws IOException {
+            encoder.writeNull();
+          }
+        };
+      case BOOLEAN:
+        return new ValueWriter() {
+          @Override
+          public void write(Object value, Encoder encoder) throws IOException {
+            encoder.writeBoolean((Boolean) value);
+          }
+        };
+      case INT:
+        return new ValueWriter() {
+          @Override
+          public void write(Object value, Encoder encoder) throws IOException {
+            encoder.writeInt(((Number) value).intValue());
+          }
+        };
+      case LONG:
+        return new ValueWriter() {
+          @Override
+          public void write(Object value, Encoder encoder) throws IOException {
+            encoder.writeLong(((Number) value).longValue());
+          }
+        };
+      case FLOAT:
+        return new ValueWriter() {
+          @Override
+          public void write(Object value, Encoder encoder) throws IOException {
+            encoder.writeFloat(((Number) value).floatValue());
+          }
+        };
+      case DOUBLE:
+        return new ValueWriter() {
+          @Override
+          public void write(Object value, Encoder encoder) throws IOException {
+            encoder.writeDouble(((Number) value).doubleValue());
+          }
+        };
+      case STRING:
+        return new ValueWriter() {
+          @Override
+          public void write(Object value, Encoder encoder) throws IOException {
+            encoder.writeString(value.toString());
+          }
+        };
+      case BYTES:
+        return new ValueWriter() {
+          @Override
+          public void write(Object value, Encoder encoder) throws IOException {
+            if (value instanceof ByteBuffer) {
+              encoder.writeBytes((ByteBuffer) value);
+            } else {
+              encoder.writeBytes((byte[]) value);
+            }
+          }
+        };
+      case ENUM:
+        return new ValueWriter() {
+          @Override
+          public void write(Object value, Encoder encoder) throws IOException {
+            encoder.writeEnum(schema.getEnumIndex(value.toString()));
+          }
+        };
+      case ARRAY:
+        return compileArray(compile(schema.getComponentSchema(), records));
+      case MAP:
+        return compileMap(compile(schema.getMapSchema().getValue(), records));
+      case RECORD:
+        return compileRecord(schema, records);
+      case UNION:
+        return compileUnion(schema, records);
+      default:
+        throw new UnexpectedFormatException("field type " + schema.getType() + " is not supported.");
+    }
+  }
+
+  private static ValueWriter compileArray(final ValueWriter elementWriter) {
+    return new ValueWriter() {
+      @Override
+      public void write(Object value, Encoder encoder) throws IOException {
+        encoder.writeArrayStart();
+        if (value instanceof Collection) {
+          Collection<?> collection = (Collection<?>) value;
+          encoder.setItemCount(collection.size());
+          for (Object element : collection) {
+            encoder.startItem();
+            elementWriter.write(element, encoder);
+          }
+        } else {
+          // Arrays of objects or of primitives, such as int[] or long[].
+          int length = Array.getLength(value);
+          encoder.setItemCount(length);
+          for (int i = 0; i < length; i++) {
+            encoder.startItem();
+            elementWriter.write(Array.get(value, i), encoder);
+          }
+        }
+        encoder.writeArrayEnd();
+      }
+    };
+  }
+
+  private static ValueWriter compileMap(final ValueWriter valueWriter) {
+    return new ValueWriter() {
+      @Override
+      public void write(Object value, Encoder encoder) throws IOException {
+        Map<?, ?> map = (Map<?, ?>) value;
+        encoder.writeMapStart();
+        encoder.setItemCount(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+          encoder.startItem();
+          encoder.writeString(entry.getKey().toString());
+          valueWriter.write(entry.getValue(), encoder);
+        }
+        encoder.writeMapEnd();
+      }
+    };
+  }
+
+  private static ValueWriter compileRecord(Schema schema, Map<String, RecordWriter> records) {
+    // Records are registered before their fields are compiled, so that recursive references resolve.
+    RecordWriter writer = records.get(schema.getRecordName());
+    if (writer != null) {
+      return writer;
+    }
+    writer = new RecordWriter();
+    records.put(schema.getRecordName(), writer);
+    List<Schema.Field> fields = schema.getFields();
+    String[] fieldNames = new String[fields.size()];
+    ValueWriter[] fieldWriters = new ValueWriter[fields.size()];
+    for (int i = 0; i < fieldNames.length; i++) {
+      fieldNames[i] = fields.get(i).getName();
+      fieldWriters[i] = compile(fields.get(i).getSchema(), records);
+    }
+    writer.fieldNames = fieldNames;
+    writer.fieldWriters = fieldWriters;
+    return writer;
+  }
+
+  private static ValueWriter compileUnion(Schema schema, Map<String, RecordWriter> records) {
+    final List<Schema> branches = schema.getUnionSchemas();
+    final ValueWriter[] writers = new ValueWriter[branches.size()];
+    for (int i = 0; i < writers.length; i++) {
+      writers[i] = compile(branches.get(i), records);
+    }
+
+    // Fast path for nullable types.
+    if (branches.size() == 2 && (branches.get(0).getType() == Schema.Type.NULL ||
+      branches.get(1).getType() == Schema.Type.NULL)) {
+      final int nullIndex = branches.get(0).getType() == Schema.Type.NULL ? 0 : 1;
+      final int valueIndex = 1 - nullIndex;
+      final ValueWriter valueWriter = writers[valueIndex];
+      return new ValueWriter() {
+        @Override
+        public void write(Object value, Encoder encoder) throws IOException {
+          if (value == null) {
+            encoder.writeIndex(nullIndex);
+            encoder.writeNull();
+          } else {
+            encoder.writeIndex(valueIndex);
+            valueWriter.write(value, encoder);
+          }
+        }
+      };
+    }
+
+    return new ValueWriter() {
+      @Override
+      public void write(Object value, Encoder encoder) throws IOException {
+        for (int i = 0; i < writers.length; i++) {
+          if (matches(value, branches.get(i))) {
+            encoder.writeIndex(i);
+            writers[i].write(value, encoder);
+            return;
+          }
+        }
+        throw new UnexpectedFormatException("unable to determine union type.");
+      }
+    };
+  }
+
+  /**
+   * Returns whether a value can be written with the given union branch.
+   */
+  private static boolean matches(Object value, Schema schema) {
+    switch (schema.getType()) {
+      case NULL:
+        return value == null;
+      case BOOLEAN:
+        return value instanceof Boolean;
+      case INT:
+        return value instanceof Integer || value instanceof Short || value instanceof Byte;
+      case LONG:
+        return value instanceof Long || value instanceof Integer;
+      case FLOAT:
+        return value instanceof Float;
+      case DOUBLE:
+        return value instanceof Double || value instanceof Float;
+      case STRING:
+        return value instanceof CharSequence;
+      case BYTES:
+        return value instanceof byte[] || value instanceof ByteBuffer;
+      case ENUM:
+        return (value instanceof String || value instanceof Enum) &&
+          schema.getEnumValues().contains(value.toString());
+      case ARRAY:
+        return value instanceof Collection || (value != null && value.getClass().isArray());
+      case MAP:
+        return value instanceof Map;
+      case RECORD:
+        return value instanceof StructuredRecord &&
+          ((StructuredRecord) value).getSchema().getRecordName().equals(schema.getRecordName());
+      default:
+        return false;
+    }
+  }
+}
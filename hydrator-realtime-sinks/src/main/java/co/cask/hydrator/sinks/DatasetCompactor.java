@@ -0,0 +1,351 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Merges the small Avro files of a file system dataset into larger ones, partition by partition.
+ *
+ * <p>Files smaller than half the target size are merged, in order of modification, into files of up to
+ * the target size. Only closed files are merged: Kite writes to hidden files and makes them visible when
+ * closed. Avro blocks are copied without decoding, and recompressed only if the codecs differ. Files of
+ * different schemas are not merged together.</p>
+ *
+ * <p>A hidden manifest listing the merged file and its sources is written before the merged file, which
+ * is written to a hidden file and renamed once complete. The rename commits the merge: a merge interrupted
+ * after it deletes the sources on the next pass, and one interrupted before it deletes the hidden file and
+ * leaves the sources as they are. Records are never lost, and only kept twice until the sources are
+ * deleted, so a reader listing the directory between the rename and the deletes sees them twice.</p>
+ *
+ * <p>Merges are not coordinated between compactors, so only one compactor should run per dataset.</p>
+ */
+final class DatasetCompactor {
+  private static final Logger LOG = LoggerFactory.getLogger(DatasetCompactor.class);
+
+  static final String MANIFEST_PREFIX = ".compaction-";
+  private static final String AVRO_EXTENSION = ".avro";
+  private static final String TMP_EXTENSION = ".tmp";
+
+  private final FileSystem fs;
+  private final Path root;
+  private final long targetBytes;
+  private final RateLimiter rateLimiter;
+
+  private final AtomicLong mergedFiles = new AtomicLong();
+  private final AtomicLong mergedBytes = new AtomicLong();
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param bytesPerSecond bytes read per second while merging, or null for no limit
+   */
+  DatasetCompactor(FileSystem fs, Path root, long targetBytes, @Nullable Long bytesPerSecond) {
+    this.fs = fs;
+    this.root = root;
+    this.targetBytes = targetBytes;
+    this.rateLimiter = bytesPerSecond == null ? null : RateLimiter.create(bytesPerSecond);
+  }
+
+  /**
+   * Compacts the dataset periodically in a background thread.
+   */
+  synchronized void start(long intervalMs) {
+    executor = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("kite-compactor-" + root.getName()).build());
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          compact();
+        } catch (Throwable t) {
+          // Interrupted merges are recovered on the next pass.
+          LOG.warn("Failed to compact {}", root, t);
+        }
+      }
+    }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops compacting, after the merge in progress if any.
+   */
+  synchronized void stop() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+    }
+    executor = null;
+  }
+
+  /**
+   * Compacts every directory of the dataset once.
+   *
+   * @return the number of files merged
+   */
+  int compact() throws IOException {
+    return compactDirectory(root);
+  }
+
+  /**
+   * Returns the number of files merged since the last call and resets it.
+   */
+  long drainMergedFiles() {
+    return mergedFiles.getAndSet(0);
+  }
+
+  /**
+   * Returns the number of bytes merged since the last call and resets it.
+   */
+  long drainMergedBytes() {
+    return mergedBytes.getAndSet(0);
+  }
+
+  private int compactDirectory(Path dir) throws IOException {
+    int merged = 0;
+    // Finish interrupted merges first, they change the files of the directory.
+    for (FileStatus status : fs.listStatus(dir)) {
+      String name = status.getPath().getName();
+      if (status.isDirectory()) {
+        // Skips Kite's metadata and other hidden directories.
+        if (!name.startsWith(".") && !name.startsWith("_")) {
+          merged += compactDirectory(status.getPath());
+        }
+      } else if (name.startsWith(MANIFEST_PREFIX)) {
+        recover(dir, status.getPath());
+      }
+    }
+
+    // Candidates by schema, in order of modification so that merged files keep the order of records.
+    Map<Schema, List<FileStatus>> candidates = Maps.newLinkedHashMap();
+    List<FileStatus> files = Lists.newArrayList();
+    for (FileStatus status : fs.listStatus(dir)) {
+      String name = status.getPath().getName();
+      if (!status.isDirectory() && !name.startsWith(".") && !name.startsWith("_") &&
+        name.endsWith(AVRO_EXTENSION) && status.getLen() < targetBytes / 2) {
+        files.add(status);
+      }
+    }
+    Collections.sort(files, new Comparator<FileStatus>() {
+      @Override
+      public int compare(FileStatus first, FileStatus second) {
+        return Long.compare(first.getModificationTime(), second.getModificationTime());
+      }
+    });
+    for (FileStatus file : files) {
+      Schema schema = schemaOf(file.getPath());
+      List<FileStatus> group = candidates.get(schema);
+      if (group == null) {
+        group = Lists.newArrayList();
+        candidates.put(schema, group);
+      }
+      group.add(file);
+    }
+
+    for (Map.Entry<Schema, List<FileStatus>> entry : candidates.entrySet()) {
+      List<FileStatus> bin = Lists.newArrayList();
+      long binBytes = 0;
+      for (FileStatus file : entry.getValue()) {
+        if (!bin.isEmpty() && binBytes + file.getLen() > targetBytes) {
+          merged += merge(dir, entry.getKey(), bin);
+          bin = Lists.newArrayList();
+          binBytes = 0;
+        }
+        bin.add(file);
+        binBytes += file.getLen();
+      }
+      merged += merge(dir, entry.getKey(), bin);
+    }
+    return merged;
+  }
+
+  /**
+   * Merges files into one and swaps it in for them.
+   *
+   * @return the number of files merged, 0 if there are fewer than two
+   */
+  private int merge(Path dir, Schema schema, List<FileStatus> files) throws IOException {
+    if (files.size() < 2) {
+      return 0;
+    }
+    String id = UUID.randomUUID().toString();
+    Path target = new Path(dir, id + AVRO_EXTENSION);
+    Path tmp = tmpOf(target);
+
+    // Written first, so that the hidden file of an interrupted merge is always found and deleted.
+    Path manifest = new Path(dir, MANIFEST_PREFIX + id);
+    Writer out = new OutputStreamWriter(fs.create(manifest, false), Charsets.UTF_8);
+    try {
+      out.write(target.getName() + "\n");
+      for (FileStatus file : files) {
+        out.write(file.getPath().getName() + "\n");
+      }
+    } finally {
+      out.close();
+    }
+
+    String codec = null;
+    long bytes = 0;
+    DataFileWriter<GenericRecord> writer = new DataFileWriter<GenericRecord>(new GenericDatumWriter<GenericRecord>());
+    boolean written = false;
+    try {
+      for (FileStatus file : files) {
+        acquire(file.getLen());
+        DataFileStream<GenericRecord> in =
+          new DataFileStream<GenericRecord>(fs.open(file.getPath()), new GenericDatumReader<GenericRecord>());
+        try {
+          String fileCodec = codecOf(in);
+          if (codec == null) {
+            // The merged file uses the codec of its first source.
+            codec = fileCodec;
+            writer.setCodec(CodecFactory.fromString(codec));
+            writer.create(schema, fs.create(tmp, false));
+          }
+          writer.appendAllFrom(in, !codec.equals(fileCodec));
+        } finally {
+          in.close();
+        }
+        bytes += file.getLen();
+      }
+      written = true;
+    } finally {
+      writer.close();
+      if (!written) {
+        fs.delete(tmp, false);
+        fs.delete(manifest, false);
+      }
+    }
+
+    // The rename commits the merge.
+    if (!fs.rename(tmp, target)) {
+      fs.delete(tmp, false);
+      fs.delete(manifest, false);
+      throw new IOException("Failed to rename " + tmp + " to " + target);
+    }
+    for (FileStatus file : files) {
+      fs.delete(file.getPath(), false);
+    }
+    fs.delete(manifest, false);
+
+    LOG.debug("Merged {} files of {} into {}", files.size(), dir, target);
+    mergedFiles.addAndGet(files.size());
+    mergedBytes.addAndGet(bytes);
+    return files.size();
+  }
+
+  /**
+   * Completes a merge interrupted after its file was renamed, or discards one interrupted before, including
+   * one interrupted while writing the manifest.
+   */
+  private void recover(Path dir, Path manifest) throws IOException {
+    List<String> names = Lists.newArrayList();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(manifest), Charsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isEmpty()) {
+          names.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    if (!names.isEmpty()) {
+      Path target = new Path(dir, names.get(0));
+      if (fs.exists(target)) {
+        LOG.info("Completing interrupted merge into {}", target);
+        for (String source : names.subList(1, names.size())) {
+          fs.delete(new Path(dir, source), false);
+        }
+      } else {
+        LOG.info("Discarding interrupted merge into {}", target);
+        fs.delete(tmpOf(target), false);
+      }
+    }
+    fs.delete(manifest, false);
+  }
+
+  private Schema schemaOf(Path file) throws IOException {
+    InputStream in = fs.open(file);
+    try {
+      return new DataFileStream<GenericRecord>(in, new GenericDatumReader<GenericRecord>()).getSchema();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String codecOf(DataFileStream<?> in) {
+    String codec = in.getMetaString(DataFileConstants.CODEC);
+    return codec == null ? DataFileConstants.NULL_CODEC : codec;
+  }
+
+  private static Path tmpOf(Path target) {
+    return new Path(target.getParent(), "." + target.getName() + TMP_EXTENSION);
+  }
+
+  private void acquire(long bytes) {
+    if (rateLimiter == null) {
+      return;
+    }
+    while (bytes > 0) {
+      int permits = (int) Math.min(bytes, Integer.MAX_VALUE);
+      rateLimiter.acquire(Math.max(permits, 1));
+      bytes -= permits;
+    }
+  }
+}
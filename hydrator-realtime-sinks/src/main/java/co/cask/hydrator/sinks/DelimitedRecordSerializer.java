@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import co.cask.cdap.api.data.format.StructuredRecord;
+import co.cask.cdap.api.data.schema.Schema;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.IOException;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Serializes {@link StructuredRecord}s of a single schema into delimited text.
+ *
+ * <p>Field names and the {@link CSVFormat} are resolved once when the serializer is built, and
+ * every record is printed into the same buffer through the same {@link CSVPrinter}, so serializing
+ * a record only allocates the resulting string. Instances are not thread safe.</p>
+ */
+final class DelimitedRecordSerializer {
+  // Schema the serializer was built for.
+  private final Schema schema;
+
+  // Names of the fields in the order they are printed.
+  private final String[] fieldNames;
+
+  // Values of the record being serialized, reused across records.
+  private final Object[] values;
+
+  // Buffer the printer writes into.
+  private final StringBuilder buffer = new StringBuilder(256);
+
+  // Printer bound to the buffer.
+  private final CSVPrinter printer;
+
+  DelimitedRecordSerializer(Schema schema, CSVFormat format) throws IOException {
+    this.schema = schema;
+    List<Schema.Field> fields = schema.getFields();
+    this.fieldNames = new String[fields.size()];
+    for (int i = 0; i < fieldNames.length; i++) {
+      fieldNames[i] = fields.get(i).getName();
+    }
+    this.values = new Object[fieldNames.length];
+    this.printer = new CSVPrinter(buffer, format);
+  }
+
+  /**
+   * Returns the schema this serializer was built for.
+   */
+  Schema getSchema() {
+    return schema;
+  }
+
+  /**
+   * Serializes the record, including the record separator of the format.
+   */
+  String serialize(StructuredRecord record) throws IOException {
+    for (int i = 0; i < fieldNames.length; i++) {
+      values[i] = record.get(fieldNames[i]);
+    }
+    buffer.setLength(0);
+    printer.printRecord(values);
+    return buffer.toString();
+  }
+
+  /**
+   * Returns the {@link CSVFormat} for the given format name, or {@code null} if it is not a delimited format.
+   */
+  @Nullable
+  static CSVFormat formatOf(String name) {
+    switch (name.toLowerCase()) {
+      case "csv":
+        return CSVFormat.Predefined.Default.getFormat();
+      case "excel":
+        return CSVFormat.Predefined.Excel.getFormat();
+      case "mysql":
+        return CSVFormat.Predefined.MySQL.getFormat();
+      case "tdf":
+        return CSVFormat.Predefined.TDF.getFormat();
+      case "rfc4180":
+        return CSVFormat.Predefined.RFC4180.getFormat();
+      default:
+        return null;
+    }
+  }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import co.cask.cdap.api.data.format.StructuredRecord;
+import co.cask.cdap.api.data.format.UnexpectedFormatException;
+import co.cask.cdap.api.data.schema.Schema;
+import com.google.common.collect.Maps;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts {@link StructuredRecord}s of a single schema into Avro {@link GenericRecord}s.
+ *
+ * <p>The Avro schema is parsed once and compiled into a tree of converters, one per field, so that
+ * records are converted without parsing schemas and with Avro fields set by position. Nested
+ * records share the Avro schema of the top level record. Instances are not thread safe.</p>
+ */
+final class GenericRecordConverter {
+
+  // Schema the converter was built for.
+  private final Schema schema;
+
+  // Avro schema derived from the record schema.
+  private final org.apache.avro.Schema avroSchema;
+
+  // Converter for the top level record.
+  private final RecordConverter converter;
+
+  GenericRecordConverter(Schema schema) {
+    this.schema = schema;
+    this.avroSchema = new org.apache.avro.Schema.Parser().parse(schema.toString());
+    this.converter = compileRecord(avroSchema, Maps.<String, RecordConverter>newHashMap());
+  }
+
+  /**
+   * Returns the schema this converter was built for.
+   */
+  Schema getSchema() {
+    return schema;
+  }
+
+  /**
+   * Returns the Avro schema of the converted records.
+   */
+  org.apache.avro.Schema getAvroSchema() {
+    return avroSchema;
+  }
+
+  /**
+   * Converts a record of the schema this converter was built for.
+   */
+  GenericRecord convert(StructuredRecord record) {
+    return converter.convert(record);
+  }
+
+  /**
+   * Converts a value of a given Avro schema.
+   */
+  private interface ValueConverter {
+    Object convert(Object value);
+  }
+
+  /**
+   * Converts the fields of a record in schema order.
+   */
+  private static final class RecordConverter implements ValueConverter {
+    private org.apache.avro.Schema avroSchema;
+    private String[] fieldNames;
+    private ValueConverter[] fieldConverters;
+    private boolean[] nullable;
+
+    @Override
+    public GenericRecord convert(Object value) {
+      StructuredRecord record = (StructuredRecord) value;
+      GenericData.Record converted = new GenericData.Record(avroSchema);
+      for (int i = 0; i < fieldNames.length; i++) {
+        Object field = record.get(fieldNames[i]);
+        if (field != null) {
+          converted.put(i, fieldConverters[i].convert(field));
+        } else if (!nullable[i]) {
+          throw new UnexpectedFormatException("Field " + fieldNames[i] + " of record " +
+                                                avroSchema.getFullName() + " cannot be null.");
+        }
+      }
+      return converted;
+    }
+  }
+
+  private static final ValueConverter NULL = new ValueConverter() {
+    @Override
+    public Object convert(Object value) {
+      return null;
+    }
+  };
+
+  private static final ValueConverter IDENTITY = new ValueConverter() {
+    @Override
+    public Object convert(Object value) {
+      return value;
+    }
+  };
+
+  private static final ValueConverter STRING = new ValueConverter() {
+    @Override
+    public Object convert(Object value) {
+      return value.toString();
+    }
+  };
+
+  /**
+   * Avro's generic writer expects BYTES as a {@link ByteBuffer}. Arrays are wrapped rather than copied,
+   * buffers are passed as they are, from their position to their limit.
+   */
+  private static final ValueConverter BYTES = new ValueConverter() {
+    @Override
+    public Object convert(Object value) {
+      if (value instanceof ByteBuffer) {
+        return value;
+      }
+      if (value instanceof byte[]) {
+        return ByteBuffer.wrap((byte[]) value);
+      }
+      throw new UnexpectedFormatException("bytes field should be a byte[] or ByteBuffer, found " +
+                                            value.getClass() + ".");
+    }
+  };
+
+  private static ValueConverter compile(final org.apache.avro.Schema schema, Map<String, RecordConverter> records) {
+    switch (schema.getType()) {
+      case RECORD:
+        return compileRecord(schema, records);
+      case ARRAY:
+        return compileArray(compile(schema.getElementType(), records));
+      case MAP:
+        return compileMap(compile(schema.getValueType(), records));
+      case UNION:
+        return compileUnion(schema, records);
+      case NULL:
+        return NULL;
+      case STRING:
+        return STRING;
+      case BYTES:
+        return BYTES;
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+      case BOOLEAN:
+        return IDENTITY;
+      default:
+        // Fails on conversion rather than here, so that unsupported union branches can be skipped.
+        return new ValueConverter() {
+          @Override
+          public Object convert(Object value) {
+            throw new UnexpectedFormatException("field type " + schema.getType() + " is not supported.");
+          }
+        };
+    }
+  }
+
+  private static RecordConverter compileRecord(org.apache.avro.Schema schema, Map<String, RecordConverter> records) {
+    // Records are registered before their fields are compiled, so that recursive references resolve.
+    RecordConverter converter = records.get(schema.getFullName());
+    if (converter != null) {
+      return converter;
+    }
+    converter = new RecordConverter();
+    records.put(schema.getFullName(), converter);
+    List<org.apache.avro.Schema.Field> fields = schema.getFields();
+    String[] fieldNames = new String[fields.size()];
+    ValueConverter[] fieldConverters = new ValueConverter[fields.size()];
+    boolean[] nullable = new boolean[fields.size()];
+    for (int i = 0; i < fieldNames.length; i++) {
+      fieldNames[i] = fields.get(i).name();
+      fieldConverters[i] = compile(fields.get(i).schema(), records);
+      nullable[i] = isNullable(fields.get(i).schema());
+    }
+    converter.avroSchema = schema;
+    converter.fieldNames = fieldNames;
+    converter.fieldConverters = fieldConverters;
+    converter.nullable = nullable;
+    return converter;
+  }
+
+  private static ValueConverter compileArray(final ValueConverter elementConverter) {
+    return new ValueConverter() {
+      @Override
+      public Object convert(Object value) {
+        List<Object> output;
+        if (value instanceof Collection) {
+          Collection<?> collection = (Collection<?>) value;
+          output = new ArrayList<Object>(collection.size());
+          for (Object element : collection) {
+            output.add(elementConverter.convert(element));
+          }
+        } else {
+          // Arrays of objects or of primitives, such as int[] or long[].
+          int length = Array.getLength(value);
+          output = new ArrayList<Object>(length);
+          for (int i = 0; i < length; i++) {
+            output.add(elementConverter.convert(Array.get(value, i)));
+          }
+        }
+        return output;
+      }
+    };
+  }
+
+  private static ValueConverter compileMap(final ValueConverter valueConverter) {
+    return new ValueConverter() {
+      @Override
+      public Object convert(Object value) {
+        Map<?, ?> map = (Map<?, ?>) value;
+        Map<Object, Object> converted = Maps.newHashMapWithExpectedSize(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+          converted.put(entry.getKey(), valueConverter.convert(entry.getValue()));
+        }
+        return converted;
+      }
+    };
+  }
+
+  private static ValueConverter compileUnion(org.apache.avro.Schema schema, Map<String, RecordConverter> records) {
+    List<org.apache.avro.Schema> branches = schema.getTypes();
+    ValueConverter[] converters = new ValueConverter[branches.size()];
+    for (int i = 0; i < converters.length; i++) {
+      converters[i] = compile(branches.get(i), records);
+    }
+
+    // Fast path for nullable types.
+    if (branches.size() == 2 && (branches.get(0).getType() == org.apache.avro.Schema.Type.NULL ||
+      branches.get(1).getType() == org.apache.avro.Schema.Type.NULL)) {
+      final ValueConverter valueConverter =
+        converters[branches.get(0).getType() == org.apache.avro.Schema.Type.NULL ? 1 : 0];
+      return new ValueConverter() {
+        @Override
+        public Object convert(Object value) {
+          return value == null ? null : valueConverter.convert(value);
+        }
+      };
+    }
+    return new UnionConverter(branches, converters, isNullable(schema));
+  }
+
+  /**
+   * Converts a value with the union branch picked from the value's type. The branch of every value
+   * class, and of every record name, is resolved on first use and then looked up.
+   */
+  private static final class UnionConverter implements ValueConverter {
+    private final List<org.apache.avro.Schema> branches;
+    private final ValueConverter[] converters;
+    private final boolean nullable;
+    private final Map<Class<?>, ValueConverter> byClass = Maps.newIdentityHashMap();
+    private final Map<String, ValueConverter> byRecordName = Maps.newHashMap();
+
+    private UnionConverter(List<org.apache.avro.Schema> branches, ValueConverter[] converters, boolean nullable) {
+      this.branches = branches;
+      this.converters = converters;
+      this.nullable = nullable;
+    }
+
+    @Override
+    public Object convert(Object value) {
+      if (value == null) {
+        if (nullable) {
+          return null;
+        }
+        throw new UnexpectedFormatException("unable to determine union type for null value.");
+      }
+      ValueConverter converter;
+      if (value instanceof StructuredRecord) {
+        String recordName = ((StructuredRecord) value).getSchema().getRecordName();
+        converter = byRecordName.get(recordName);
+        if (converter == null) {
+          converter = resolve(value);
+          byRecordName.put(recordName, converter);
+        }
+      } else {
+        converter = byClass.get(value.getClass());
+        if (converter == null) {
+          converter = resolve(value);
+          byClass.put(value.getClass(), converter);
+        }
+      }
+      return converter.convert(value);
+    }
+
+    /**
+     * Picks the branch for the type of a value: the branch of the same type if there is one, otherwise
+     * the narrowest branch numbers widen to.
+     */
+    private ValueConverter resolve(Object value) {
+      org.apache.avro.Schema.Type[] candidates;
+      if (value instanceof Boolean) {
+        candidates = new org.apache.avro.Schema.Type[] { org.apache.avro.Schema.Type.BOOLEAN };
+      } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+        candidates = new org.apache.avro.Schema.Type[] {
+          org.apache.avro.Schema.Type.INT, org.apache.avro.Schema.Type.LONG,
+          org.apache.avro.Schema.Type.FLOAT, org.apache.avro.Schema.Type.DOUBLE };
+      } else if (value instanceof Long) {
+        candidates = new org.apache.avro.Schema.Type[] {
+          org.apache.avro.Schema.Type.LONG, org.apache.avro.Schema.Type.FLOAT, org.apache.avro.Schema.Type.DOUBLE };
+      } else if (value instanceof Float) {
+        candidates = new org.apache.avro.Schema.Type[] {
+          org.apache.avro.Schema.Type.FLOAT, org.apache.avro.Schema.Type.DOUBLE };
+      } else if (value instanceof Double) {
+        candidates = new org.apache.avro.Schema.Type[] { org.apache.avro.Schema.Type.DOUBLE };
+      } else if (value instanceof CharSequence) {
+        candidates = new org.apache.avro.Schema.Type[] { org.apache.avro.Schema.Type.STRING };
+      } else if (value instanceof byte[] || value instanceof ByteBuffer) {
+        candidates = new org.apache.avro.Schema.Type[] { org.apache.avro.Schema.Type.BYTES };
+      } else if (value instanceof Collection || value.getClass().isArray()) {
+        candidates = new org.apache.avro.Schema.Type[] { org.apache.avro.Schema.Type.ARRAY };
+      } else if (value instanceof Map) {
+        candidates = new org.apache.avro.Schema.Type[] { org.apache.avro.Schema.Type.MAP };
+      } else if (value instanceof StructuredRecord) {
+        return converters[recordBranch(((StructuredRecord) value).getSchema().getRecordName())];
+      } else {
+        throw new UnexpectedFormatException("unable to determine union type for " + value.getClass() + ".");
+      }
+
+      // Numbers are passed as they are to the branch of their own type, and converted to the others.
+      boolean exact = !(value instanceof Short || value instanceof Byte);
+      for (org.apache.avro.Schema.Type candidate : candidates) {
+        for (int i = 0; i < branches.size(); i++) {
+          if (branches.get(i).getType() == candidate) {
+            return exact ? converters[i] : numberConverter(candidate);
+          }
+        }
+        exact = false;
+      }
+      throw new UnexpectedFormatException("unable to determine union type for " + value.getClass() + ".");
+    }
+
+    /**
+     * Returns the record branch with the given name, or the only record branch if none has the name.
+     */
+    private int recordBranch(String recordName) {
+      int found = -1;
+      int records = 0;
+      for (int i = 0; i < branches.size(); i++) {
+        if (branches.get(i).getType() == org.apache.avro.Schema.Type.RECORD) {
+          if (branches.get(i).getName().equals(recordName)) {
+            return i;
+          }
+          found = i;
+          records++;
+        }
+      }
+      if (records != 1) {
+        throw new UnexpectedFormatException("unable to determine union type for record " + recordName + ".");
+      }
+      return found;
+    }
+  }
+
+  /**
+   * Returns a converter to the Java type Avro uses for a numeric type.
+   */
+  private static ValueConverter numberConverter(org.apache.avro.Schema.Type type) {
+    switch (type) {
+      case INT:
+        return new ValueConverter() {
+          @Override
+          public Object convert(Object value) {
+            return ((Number) value).intValue();
+          }
+        };
+      case LONG:
+        return new ValueConverter() {
+          @Override
+          public Object convert(Object value) {
+            return ((Number) value).longValue();
+          }
+        };
+      case FLOAT:
+        return new ValueConverter() {
+          @Override
+          public Object convert(Object value) {
+            return ((Number) value).floatValue();
+          }
+        };
+      default:
+        return new ValueConverter() {
+          @Override
+          public Object convert(Object value) {
+            return ((Number) value).doubleValue();
+          }
+        };
+    }
+  }
+
+  private static boolean isNullable(org.apache.avro.Schema schema) {
+    if (schema.getType() == org.apache.avro.Schema.Type.NULL) {
+      return true;
+    }
+    if (schema.getType() == org.apache.avro.Schema.Type.UNION) {
+      for (org.apache.avro.Schema branch : schema.getTypes()) {
+        if (branch.getType() == org.apache.avro.Schema.Type.NULL) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
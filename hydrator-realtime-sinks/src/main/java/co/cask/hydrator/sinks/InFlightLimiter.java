@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Bounds the number of messages and bytes that have been sent but not yet acknowledged.
+ *
+ * <p>The sending thread acquires before each send and blocks while either limit is reached; the
+ * producer's completion callback releases. A message larger than the byte limit takes the whole
+ * byte budget, so it is sent once everything before it has been acknowledged.</p>
+ */
+final class InFlightLimiter {
+  // Permits for messages, null when the number of messages is not limited.
+  private final Semaphore messages;
+
+  // Permits for bytes, null when the number of bytes is not limited.
+  private final Semaphore bytes;
+
+  // Byte limit, a single message never takes more permits than this.
+  private final int maxBytes;
+
+  // Current number of messages and bytes in flight.
+  private final AtomicInteger inFlightMessages = new AtomicInteger();
+  private final AtomicLong inFlightBytes = new AtomicLong();
+
+  // Time spent blocked since the last call to drainBlockedNanos().
+  private final AtomicLong blockedNanos = new AtomicLong();
+
+  InFlightLimiter(@Nullable Integer maxMessages, @Nullable Integer maxBytes) {
+    this.messages = maxMessages == null ? null : new Semaphore(maxMessages);
+    this.bytes = maxBytes == null ? null : new Semaphore(maxBytes);
+    this.maxBytes = maxBytes == null ? Integer.MAX_VALUE : maxBytes;
+  }
+
+  /**
+   * Acquires room for one message of the given size, blocking while the limits are reached. Nothing is
+   * acquired if the thread is interrupted.
+   */
+  void acquire(int size) throws InterruptedException {
+    int permits = Math.min(size, maxBytes);
+    boolean blocked = false;
+    long start = 0;
+    if (messages != null && !messages.tryAcquire()) {
+      blocked = true;
+      start = System.nanoTime();
+      messages.acquire();
+    }
+    if (bytes != null && !bytes.tryAcquire(permits)) {
+      if (!blocked) {
+        blocked = true;
+        start = System.nanoTime();
+      }
+      try {
+        bytes.acquire(permits);
+      } catch (InterruptedException e) {
+        if (messages != null) {
+          messages.release();
+        }
+        throw e;
+      }
+    }
+    if (blocked) {
+      blockedNanos.addAndGet(System.nanoTime() - start);
+    }
+    inFlightMessages.incrementAndGet();
+    inFlightBytes.addAndGet(size);
+  }
+
+  /**
+   * Acquires room for one message of the given size without blocking.
+   *
+   * @return false if either limit is reached and nothing was acquired.
+   */
+  boolean tryAcquire(int size) {
+    int permits = Math.min(size, maxBytes);
+    if (messages != null && !messages.tryAcquire()) {
+      return false;
+    }
+    if (bytes != null && !bytes.tryAcquire(permits)) {
+      if (messages != null) {
+        messages.release();
+      }
+      return false;
+    }
+    inFlightMessages.incrementAndGet();
+    inFlightBytes.addAndGet(size);
+    return true;
+  }
+
+  /**
+   * Releases the room taken by one message of the given size. Called when the send completes.
+   */
+  void release(int size) {
+    inFlightMessages.decrementAndGet();
+    inFlightBytes.addAndGet(-size);
+    if (bytes != null) {
+      bytes.release(Math.min(size, maxBytes));
+    }
+    if (messages != null) {
+      messages.release();
+    }
+  }
+
+  int getInFlightMessages() {
+    return inFlightMessages.get();
+  }
+
+  long getInFlightBytes() {
+    return inFlightBytes.get();
+  }
+
+  /**
+   * Returns the time spent blocked since the last call and resets it.
+   */
+  long drainBlockedNanos() {
+    return blockedNanos.getAndSet(0);
+  }
+}
@@ -27,21 +27,42 @@ import co.cask.cdap.etl.api.realtime.DataWriter;
 import co.cask.cdap.etl.api.realtime.RealtimeContext;
 import co.cask.cdap.etl.api.realtime.RealtimeSink;
 import co.cask.cdap.etl.common.StructuredRecordStringConverter;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import kafka.javaapi.producer.Producer;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import kafka.producer.KeyedMessage;
 import kafka.producer.ProducerConfig;
 import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
 import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.StringWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
 
 
 /**
@@ -57,6 +78,26 @@ public class KafkaProducer extends RealtimeSink<StructuredRecord> {
   private static final String VAL_SERIALIZER = "value.serializer";
   private static final String CLIENT_ID = "client.id";
   private static final String ACKS_REQUIRED = "request.required.acks";
+  private static final String BATCH_SIZE = "batch.size";
+  private static final String LINGER_MS = "linger.ms";
+  private static final String COMPRESSION_TYPE = "compression.type";
+  private static final String BUFFER_MEMORY = "buffer.memory";
+  private static final String MAX_IN_FLIGHT_REQUESTS = "max.in.flight.requests.per.connection";
+  private static final String BLOCK_ON_BUFFER_FULL = "block.on.buffer.full";
+  private static final Set<String> COMPRESSION_TYPES = ImmutableSet.of("none", "gzip", "snappy", "lz4");
+  private static final String FORMAT_JSON = "json";
+  private static final String FORMAT_AVRO = "avro";
+  private static final String MIRROR_ALL = "all";
+  private static final String MIRROR_PRIMARY = "primary";
+  private static final String DEFAULT_PARTITIONER = "modulo";
+  private static final int DEFAULT_SYNC_WINDOW = 1000;
+  private static final long DEFAULT_METADATA_REFRESH_MS = 300000L;
+  private static final long METRICS_INTERVAL_MS = 10000L;
+  private static final long DEFAULT_SPILL_MAX_BYTES = 1024L * 1024 * 1024;
+  private static final long DEFAULT_SPILL_TIMEOUT_MS = 30000L;
+  private static final long DEFAULT_MIN_LATENCY_MS = 5L;
+  private static final long DEFAULT_MAX_LATENCY_MS = 100L;
+  private static final int MAX_CACHED_SERIALIZERS = 64;
   
   private final Config sconfig;
   
@@ -67,20 +108,95 @@ public class KafkaProducer extends RealtimeSink<StructuredRecord> {
   private ProducerConfig config;
   
   // Kafka producer handle
-  private org.apache.kafka.clients.producer.KafkaProducer<String, String> producer;
+  private Producer<String, byte[]> producer;
+
+  // Whether the producer is borrowed from the shared pool.
+  private boolean isShared = false;
+  
+  // Partition count of each topic, refreshed periodically.
+  private PartitionCountCache partitionCounts;
+
+  // Reloads the partition counts of the primary and mirror clusters in the background.
+  private ExecutorService metadataRefresher;
   
   // Plugin context
   private RealtimeContext context;
   
-  // Optimization to collect fields extracted. This is required because the schema
-  // is not available during initialization and configuration phase.
-  private boolean fieldsExtracted = false;
+  // Message format, in lower case.
+  private String format;
+
+  // Delimited format of the message body, null when the body is not delimited.
+  private CSVFormat csvFormat;
+
+  // Delimited serializers per record schema. These are built lazily because the schema is not
+  // available during initialization and configuration phase.
+  private final Map<Schema, DelimitedRecordSerializer> serializers = newSerializerCache();
+
+  // Delimited serializer used for the last record.
+  private DelimitedRecordSerializer serializer;
+
+  // Avro serializers per record schema, so that fingerprints and encoders are computed once.
+  private final Map<Schema, AvroRecordSerializer> avroSerializers = newSerializerCache();
+
+  // Avro serializer used for the last record.
+  private AvroRecordSerializer avroSerializer;
   
   // If Async mode
   private boolean isAsync = false;
   
   // List of Kafka topics.
   private String[] topics;
+
+  // Maximum number of sends in flight in sync mode before waiting on the oldest one.
+  private int syncWindow;
+
+  // Adjusts the sync window from the observed ack latency, null when the window is fixed.
+  private AdaptiveWindowController windowController;
+
+  // Id of the next message split into chunks. Starts at random so that restarts don't reuse ids.
+  private long nextMessageId = new Random().nextLong();
+
+  // Picks the partition of every message.
+  private MessagePartitioner partitioner;
+
+  // Bounds the messages and bytes waiting for an acknowledgment in async mode.
+  private InFlightLimiter inFlight;
+
+  // Latency, size and batch histograms of every topic written to.
+  private final Map<String, TopicMetrics> topicMetrics = Maps.newHashMap();
+
+  // Time at which the histograms are emitted next.
+  private long nextMetricsEmit;
+
+  // Keeps only the last record per key of a batch, null when coalescing is disabled.
+  private KeyCoalescer coalescer;
+
+  // Records of the current batch, reused between batches when coalescing.
+  private final List<StructuredRecord> batch = Lists.newArrayList();
+
+  // Sends issued in sync mode that have not been acknowledged yet, oldest first.
+  private final Deque<PendingSend> pending = new ArrayDeque<PendingSend>();
+
+  // Secondary clusters every message is mirrored to.
+  private final List<MirrorCluster> mirrors = Lists.newArrayList();
+
+  // Whether the mirrors must acknowledge like the primary cluster, or are best effort.
+  private boolean mirrorAll;
+
+  // Mirror sends issued in sync mode with the ALL policy that have not been acknowledged yet.
+  private final Deque<Future<RecordMetadata>> mirrorPending = new ArrayDeque<Future<RecordMetadata>>();
+
+  // Holds messages that could not be sent, null when spilling is disabled.
+  private SpillJournal journal;
+
+  // Time a send is waited on before its message is spilled, and after which a failed replay is retried.
+  private long spillTimeoutMs;
+
+  // Time at which spilled messages are replayed next.
+  private long nextReplay;
+
+  // Replayed messages not acknowledged yet, in journal order. They are the first messages of the journal.
+  private final Deque<PendingSend> replaying = new ArrayDeque<PendingSend>();
   
   // required for testing.
   public KafkaProducer(Config config) {
@@ -92,6 +208,85 @@ public class KafkaProducer extends RealtimeSink<StructuredRecord> {
     super.configurePipeline(pipelineConfigurer);
     
     // Validations to be added.
+    if ((sconfig.topics == null || sconfig.topics.trim().isEmpty()) && sconfig.topicField == null) {
+      throw new IllegalArgumentException("Either topics or a topic field should be specified");
+    }
+    if (sconfig.syncWindow != null && sconfig.syncWindow < 1) {
+      throw new IllegalArgumentException("Sync window should be at least 1, found " + sconfig.syncWindow);
+    }
+    if (!sconfig.format.equalsIgnoreCase(FORMAT_JSON) && !sconfig.format.equalsIgnoreCase(FORMAT_AVRO) &&
+      DelimitedRecordSerializer.formatOf(sconfig.format) == null) {
+      throw new IllegalArgumentException("Format '" + sconfig.format + "' is not supported. Allowed values are " +
+                                           "JSON, AVRO, CSV, EXCEL, MYSQL, RFC4180 & TDF");
+    }
+    if (sconfig.metadataRefreshMs != null && sconfig.metadataRefreshMs < 0) {
+      throw new IllegalArgumentException("Metadata refresh interval should not be negative, found " +
+                                           sconfig.metadataRefreshMs);
+    }
+    if (sconfig.partitioner != null) {
+      MessagePartitioner.create(sconfig.partitioner);
+    }
+    if (sconfig.maxInFlightMessages != null && sconfig.maxInFlightMessages < 1) {
+      throw new IllegalArgumentException("Max in-flight messages should be at least 1, found " +
+                                           sconfig.maxInFlightMessages);
+    }
+    if (sconfig.maxInFlightBytes != null && sconfig.maxInFlightBytes < 1) {
+      throw new IllegalArgumentException("Max in-flight bytes should be at least 1, found " +
+                                           sconfig.maxInFlightBytes);
+    }
+    if (isAdaptive()) {
+      if (sconfig.isAsync.equalsIgnoreCase("TRUE")) {
+        throw new IllegalArgumentException("Adaptive window only applies to sync mode");
+      }
+      long minLatencyMs = sconfig.minLatencyMs == null ? DEFAULT_MIN_LATENCY_MS : sconfig.minLatencyMs;
+      long maxLatencyMs = sconfig.maxLatencyMs == null ? DEFAULT_MAX_LATENCY_MS : sconfig.maxLatencyMs;
+      if (minLatencyMs < 0 || maxLatencyMs < minLatencyMs) {
+        throw new IllegalArgumentException("Latency bounds should satisfy 0 <= min <= max, found min " +
+                                             minLatencyMs + " and max " + maxLatencyMs);
+      }
+    }
+    if (isCoalescing() && sconfig.key == null) {
+      throw new IllegalArgumentException("Coalescing requires the message key field to be specified");
+    }
+    if (sconfig.mirrorPolicy != null && !sconfig.mirrorPolicy.equalsIgnoreCase(MIRROR_ALL) &&
+      !sconfig.mirrorPolicy.equalsIgnoreCase(MIRROR_PRIMARY)) {
+      throw new IllegalArgumentException("Mirror policy '" + sconfig.mirrorPolicy + "' is not supported. " +
+                                           "Allowed values are ALL & PRIMARY");
+    }
+    if (sconfig.maxMessageBytes != null && sconfig.maxMessageBytes <= MessageChunks.HEADER_BYTES) {
+      throw new IllegalArgumentException("Max message bytes should be more than " + MessageChunks.HEADER_BYTES +
+                                           ", found " + sconfig.maxMessageBytes);
+    }
+    if (sconfig.spillMaxBytes != null && sconfig.spillMaxBytes < 1) {
+      throw new IllegalArgumentException("Spill journal size should be at least 1, found " + sconfig.spillMaxBytes);
+    }
+    if (sconfig.spillTimeoutMs != null && sconfig.spillTimeoutMs < 0) {
+      throw new IllegalArgumentException("Spill timeout should not be negative, found " + sconfig.spillTimeoutMs);
+    }
+    
+    // Producer tuning.
+    if (sconfig.batchSize != null && sconfig.batchSize < 0) {
+      throw new IllegalArgumentException("Batch size should not be negative, found " + sconfig.batchSize);
+    }
+    if (sconfig.lingerMs != null && sconfig.lingerMs < 0) {
+      throw new IllegalArgumentException("Linger time should not be negative, found " + sconfig.lingerMs);
+    }
+    if (sconfig.compressionType != null && !COMPRESSION_TYPES.contains(sconfig.compressionType.toLowerCase())) {
+      throw new IllegalArgumentException("Compression type '" + sconfig.compressionType + "' is not supported. " +
+                                           "Allowed values are NONE, GZIP, SNAPPY & LZ4");
+    }
+    if (sconfig.bufferMemory != null && sconfig.bufferMemory <= 0) {
+      throw new IllegalArgumentException("Buffer memory should be positive, found " + sconfig.bufferMemory);
+    }
+    if (sconfig.maxInFlightRequests != null && sconfig.maxInFlightRequests < 1) {
+      throw new IllegalArgumentException("Max in-flight requests should be at least 1, found " +
+                                           sconfig.maxInFlightRequests);
+    }
+    for (String name : parseProducerProperties(sconfig.producerProperties).keySet()) {
+      if (name.equals(BROKER_LIST) || name.equals(KEY_SERIALIZER) || name.equals(VAL_SERIALIZER)) {
+        throw new IllegalArgumentException("Producer property '" + name + "' cannot be overridden");
+      }
+    }
   }
 
   @Override
@@ -100,86 +295,126 @@ public class KafkaProducer extends RealtimeSink<StructuredRecord> {
     this.context = context;
 
     // Extract the topics
-    topics = sconfig.topics.split(",");
+    topics = sconfig.topics == null ? new String[0] :
+      Iterables.toArray(Splitter.on(',').trimResults().omitEmptyStrings().split(sconfig.topics), String.class);
     
     // Configure the properties for kafka.
     props.put(BROKER_LIST, sconfig.brokers);
     props.put(KEY_SERIALIZER, "org.apache.kafka.common.serialization.StringSerializer");
-    props.put(VAL_SERIALIZER, "org.apache.kafka.common.serialization.StringSerializer");
-    props.put(CLIENT_ID, "kafka-producer-" + context.getInstanceId());
+    props.put(VAL_SERIALIZER, "org.apache.kafka.common.serialization.ByteArraySerializer");
+    // A shared producer must not be tied to one instance, or no two instances would share it.
+    isShared = sconfig.shareProducer != null && sconfig.shareProducer.equalsIgnoreCase("TRUE");
+    props.put(CLIENT_ID, isShared ? "kafka-producer-shared" : "kafka-producer-" + context.getInstanceId());
     if (sconfig.isAsync.equalsIgnoreCase("TRUE")) {
       props.put(ACKS_REQUIRED, "1");
       isAsync = true;
     }
+
+    // With a spill journal, async sends fail instead of blocking when the producer's buffer is full,
+    // so that the message can be spilled.
+    if (isAsync && sconfig.spillDir != null) {
+      props.put(BLOCK_ON_BUFFER_FULL, "false");
+    }
+
+    // Free-form properties first, so that the typed properties take precedence.
+    props.putAll(parseProducerProperties(sconfig.producerProperties));
+    if (sconfig.batchSize != null) {
+      props.put(BATCH_SIZE, Integer.toString(sconfig.batchSize));
+    }
+    if (sconfig.lingerMs != null) {
+      props.put(LINGER_MS, Long.toString(sconfig.lingerMs));
+    }
+    if (sconfig.compressionType != null) {
+      props.put(COMPRESSION_TYPE, sconfig.compressionType.toLowerCase());
+    }
+    if (sconfig.bufferMemory != null) {
+      props.put(BUFFER_MEMORY, Long.toString(sconfig.bufferMemory));
+    }
+    if (sconfig.maxInFlightRequests != null) {
+      props.put(MAX_IN_FLIGHT_REQUESTS, Integer.toString(sconfig.maxInFlightRequests));
+    }
+    syncWindow = sconfig.syncWindow == null ? DEFAULT_SYNC_WINDOW : sconfig.syncWindow;
+    inFlight = new InFlightLimiter(sconfig.maxInFlightMessages, sconfig.maxInFlightBytes);
+    coalescer = isCoalescing() ? new KeyCoalescer() : null;
+    if (isAdaptive() && !isAsync) {
+      // The configured sync window is the upper bound of the adaptive one.
+      long minLatencyMs = sconfig.minLatencyMs == null ? DEFAULT_MIN_LATENCY_MS : sconfig.minLatencyMs;
+      long maxLatencyMs = sconfig.maxLatencyMs == null ? DEFAULT_MAX_LATENCY_MS : sconfig.maxLatencyMs;
+      windowController = new AdaptiveWindowController(1, syncWindow, TimeUnit.MILLISECONDS.toMicros(minLatencyMs),
+                                                       TimeUnit.MILLISECONDS.toMicros(maxLatencyMs),
+                                                       System.currentTimeMillis());
+    }
+    partitioner = MessagePartitioner.create(sconfig.partitioner == null ? DEFAULT_PARTITIONER : sconfig.partitioner);
+    format = sconfig.format.toLowerCase();
+    if (!format.equals(FORMAT_JSON) && !format.equals(FORMAT_AVRO)) {
+      csvFormat = DelimitedRecordSerializer.formatOf(format);
+      if (csvFormat == null) {
+        throw new IllegalArgumentException("Format '" + sconfig.format + "' is not supported.");
+      }
+    }
     
     //config = new ProducerConfig(props);
-    producer = new org.apache.kafka.clients.producer.KafkaProducer<String, String>(props);
-    
+    producer = createProducer(props);
+
+    // Load the partition counts up front, so that the first batch doesn't pay for it.
+    long metadataRefreshMs = sconfig.metadataRefreshMs == null ?
+      DEFAULT_METADATA_REFRESH_MS : sconfig.metadataRefreshMs;
+    metadataRefresher = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("kafka-metadata-refresh-%d").build());
+    partitionCounts = new PartitionCountCache(producer, metadataRefreshMs, metadataRefresher);
+    for (String topic : topics) {
+      partitionCounts.get(topic);
+    }
+
+    // Mirror clusters get the same settings as the primary one. Best effort mirrors drop messages
+    // instead of blocking when their buffer is full, so that they never hold back the primary.
+    mirrorAll = sconfig.mirrorPolicy == null || sconfig.mirrorPolicy.equalsIgnoreCase(MIRROR_ALL);
+    if (sconfig.mirrorBrokers != null) {
+      for (String brokers : Splitter.on(';').trimResults().omitEmptyStrings().split(sconfig.mirrorBrokers)) {
+        String name = "mirror" + (mirrors.size() + 1);
+        Properties mirrorProps = new Properties();
+        mirrorProps.putAll(props);
+        mirrorProps.put(BROKER_LIST, brokers);
+        mirrorProps.put(CLIENT_ID, props.getProperty(CLIENT_ID) + "-" + name);
+        if (!mirrorAll) {
+          mirrorProps.put(BLOCK_ON_BUFFER_FULL, "false");
+        }
+        mirrors.add(new MirrorCluster(name, createProducer(mirrorProps), metadataRefreshMs, metadataRefresher));
+      }
+    }
+    nextMetricsEmit = System.currentTimeMillis() + METRICS_INTERVAL_MS;
+
+    // Each instance gets its own journal, messages left by a previous run are replayed on the first write.
+    spillTimeoutMs = sconfig.spillTimeoutMs == null ? DEFAULT_SPILL_TIMEOUT_MS : sconfig.spillTimeoutMs;
+    if (sconfig.spillDir != null) {
+      journal = new SpillJournal(new File(sconfig.spillDir, "kafka-producer-" + context.getInstanceId()),
+                                 sconfig.spillMaxBytes == null ? DEFAULT_SPILL_MAX_BYTES : sconfig.spillMaxBytes);
+    }
   }
   
   @Override
   public int write(Iterable<StructuredRecord> objects, final DataWriter dataWriter) throws Exception {
     int count = 0;
 
-    List<Schema.Field> fields = Lists.newArrayList();
-    
+    // Sends left over from a batch that failed part way are not waited on again.
+    pending.clear();
+    mirrorPending.clear();
+    partitioner.onNewBatch();
+    if (windowController != null) {
+      syncWindow = windowController.getWindow();
+    }
+
+    // Replays spilled messages alongside the new ones, without waiting for them.
+    if (journal != null && !journal.isEmpty()) {
+      replay();
+    }
+
     // For each object
-    for (StructuredRecord object : objects) {
-      
-      // Extract the field names from the object passed in. This is required
-      // because this information is not available in initialize or configuration phase.
-      if(!fieldsExtracted) {
-        fields = object.getSchema().getFields();
-        fieldsExtracted = true;
-      }
+    for (StructuredRecord object : coalescer == null ? objects : coalesce(objects)) {
       
       // Depending on the configuration create a body that needs to be 
       // built and pushed to Kafka. 
-      String body = "";
-      if (sconfig.format.equalsIgnoreCase("JSON")) {
-        body = StructuredRecordStringConverter.toJsonString(object);
-      } else {
-        // Extract all values from the structured record
-        List<Object> objs = Lists.newArrayList();
-        for(Schema.Field field : fields) {
-          objs.add(object.get(field.getName()));
-        }
-
-        StringWriter writer = new StringWriter();
-        CSVPrinter printer = null;
-        CSVFormat csvFileFormat;
-        switch(sconfig.format.toLowerCase()) {
-          case "csv":
-            csvFileFormat = CSVFormat.Predefined.Default.getFormat();
-            printer = new CSVPrinter(writer, csvFileFormat);
-            break;
-          
-          case "excel":
-            csvFileFormat = CSVFormat.Predefined.Excel.getFormat();
-            printer = new CSVPrinter(writer, csvFileFormat);
-            break;
-          
-          case "mysql":
-            csvFileFormat = CSVFormat.Predefined.MySQL.getFormat();
-            printer = new CSVPrinter(writer, csvFileFormat);
-            break;
-          
-          case "tdf":
-            csvFileFormat = CSVFormat.Predefined.TDF.getFormat();
-            printer = new CSVPrinter(writer, csvFileFormat);
-            break;
-          
-          case "rfc4180":
-            csvFileFormat = CSVFormat.Predefined.TDF.getFormat();
-            printer = new CSVPrinter(writer, csvFileFormat);
-            break;
-        }
-        
-        if (printer != null) {
-          printer.printRecord(objs);
-          body = writer.toString();
-        }
-      }
+      byte[] body = serialize(object);
       
       // Message key.
       String key = "no_key";
@@ -187,47 +422,574 @@ public class KafkaProducer extends RealtimeSink<StructuredRecord> {
         key = object.get(sconfig.key);    
       }
       
-      // Extract the partition key from the record
-      Integer partitionKey = 0;
+      // Extract the partition key from the record.
+      Object partitionKey = null;
       if(sconfig.partitionField != null) {
-        if(object.get(sconfig.partitionField).getClass().isInstance(Integer.class)) {
-          partitionKey = object.get(sconfig.partitionField);  
-        } else {
-          partitionKey = object.get(sconfig.partitionField).hashCode();
+        partitionKey = object.get(sconfig.partitionField);
+      }
+
+      // Route the record to the topic named in the record, if there is one.
+      String routedTopic = routedTopicOf(object);
+
+      // Write to all the configured topics. The body is shared by all of them and the partition
+      // is derived separately for each topic from the same partition key.
+      if (routedTopic != null) {
+        send(routedTopic, partitionKey, key, body);
+      } else if (topics.length > 0) {
+        for (String topic : topics) {
+          send(topic, partitionKey, key, body);
+        }
+      } else {
+        throw new IllegalArgumentException("Record has no value for topic field '" + sconfig.topicField +
+                                             "' and no default topics are configured");
+      }
+      count++;
+    }
+
+    // In sync mode the batch is complete only when every message has been acknowledged.
+    if (!isAsync) {
+      awaitPending(0);
+      awaitMirrors(0);
+    }
+    emitTopicMetrics();
+    for (MirrorCluster mirror : mirrors) {
+      // Messages the mirror has not acknowledged yet, that is how far it lags behind.
+      context.getMetrics().gauge("kafka.mirror.lag." + mirror.getName(), mirror.getInFlight());
+      long failures = mirror.drainFailures();
+      if (failures > 0) {
+        context.getMetrics().count("kafka.mirror.error." + mirror.getName(), (int) failures);
+      }
+    }
+    if (windowController != null && windowController.update(System.currentTimeMillis())) {
+      context.getMetrics().gauge("kafka.adaptive.window", windowController.getWindow());
+      context.getMetrics().gauge("kafka.adaptive.latency.us", windowController.getLatencyMicros());
+      context.getMetrics().gauge("kafka.adaptive.throughput", (long) windowController.getThroughput());
+    }
+    if (journal != null) {
+      context.getMetrics().gauge("kafka.spill.pending", journal.size());
+    }
+    if (isAsync) {
+      context.getMetrics().gauge("kafka.async.inflight", inFlight.getInFlightMessages());
+      context.getMetrics().gauge("kafka.async.inflight.bytes", inFlight.getInFlightBytes());
+      context.getMetrics().gauge("kafka.async.blocked.ms",
+                                 TimeUnit.NANOSECONDS.toMillis(inFlight.drainBlockedNanos()));
+    }
+    return count;
+  }
+
+  /**
+   * Returns the topic named in the record, or null if the record goes to the configured topics.
+   */
+  @Nullable
+  private String routedTopicOf(StructuredRecord object) {
+    if (sconfig.topicField == null) {
+      return null;
+    }
+    Object value = object.get(sconfig.topicField);
+    return value == null ? null : value.toString();
+  }
+
+  /**
+   * Returns the records of the batch without the ones followed by a record with the same key for the
+   * same topic. Records without key are kept. The kept records stay in their original order.
+   */
+  private List<StructuredRecord> coalesce(Iterable<StructuredRecord> objects) {
+    batch.clear();
+    coalescer.clear();
+    for (StructuredRecord object : objects) {
+      Object key = object.get(sconfig.key);
+      if (key != null) {
+        coalescer.put(key, routedTopicOf(object), batch.size());
+      }
+      batch.add(object);
+    }
+
+    // Compacts the kept records to the front of the list in place.
+    int kept = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      StructuredRecord object = batch.get(i);
+      Object key = object.get(sconfig.key);
+      if (key == null || coalescer.isLast(key, routedTopicOf(object), i)) {
+        batch.set(kept++, object);
+      }
+    }
+    int dropped = batch.size() - kept;
+    batch.subList(kept, batch.size()).clear();
+    if (dropped > 0) {
+      context.getMetrics().count("kafka.producer.coalesced", dropped);
+    }
+    return batch;
+  }
+
+  private boolean isAdaptive() {
+    return sconfig.adaptiveWindow != null && sconfig.adaptiveWindow.equalsIgnoreCase("TRUE");
+  }
+
+  private boolean isCoalescing() {
+    return sconfig.coalesce != null && sconfig.coalesce.equalsIgnoreCase("TRUE");
+  }
+
+  /**
+   * Sends one message to the partition of the topic the partition key maps to. Until the partition count
+   * of the topic is known, the producer picks the partition.
+   */
+  private void send(String topic, @Nullable Object partitionKey, String key, byte[] body) throws Exception {
+    int partitions = partitionCounts.get(topic);
+    Integer partition = partitions == PartitionCountCache.UNKNOWN ? null : partitionOf(partitionKey, partitions);
+    TopicMetrics metrics = topicMetrics.get(topic);
+    if (metrics == null) {
+      metrics = new TopicMetrics();
+      topicMetrics.put(topic, metrics);
+    }
+    metrics.messageBytes.record(body.length);
+    metrics.batchMessages++;
+
+    // Oversized bodies go out as chunks to the same partition, in order.
+    if (sconfig.maxMessageBytes != null && body.length > sconfig.maxMessageBytes) {
+      metrics.chunkedBytes.record(body.length);
+      context.getMetrics().count("kafka.producer.chunked", 1);
+      if (partition == null) {
+        // Chunks of a message must go to the same partition, and every topic has a first one.
+        partition = 0;
+      }
+      for (byte[] chunk : MessageChunks.split(body, sconfig.maxMessageBytes, nextMessageId++)) {
+        send(new ProducerRecord<String, byte[]>(topic, partition, key, chunk), metrics);
+      }
+    } else {
+      send(new ProducerRecord<String, byte[]>(topic, partition, key, body), metrics);
+    }
+  }
+
+  /**
+   * Sends one message, or spills it if it cannot be sent.
+   */
+  private void send(ProducerRecord<String, byte[]> record, TopicMetrics metrics) throws Exception {
+    byte[] body = record.value();
+
+    if (isAsync && journal != null && !inFlight.tryAcquire(body.length)) {
+      // Spills instead of blocking when the producer is saturated.
+      spill(record);
+    } else if (isAsync) {
+      if (journal == null) {
+        // Blocks while too many messages are waiting for an acknowledgment.
+        inFlight.acquire(body.length);
+      }
+      try {
+        producer.send(record, new SendCallback(record, metrics));
+      } catch (KafkaException e) {
+        inFlight.release(body.length);
+        if (journal == null) {
+          throw e;
+        }
+        spill(record);
+      } catch (RuntimeException e) {
+        inFlight.release(body.length);
+        throw e;
+      }
+    } else {
+      // Sends are pipelined, only wait on the oldest send once the window is full.
+      if (pending.size() >= syncWindow) {
+        awaitPending(syncWindow - 1);
+      }
+      try {
+        pending.add(new PendingSend(record, producer.send(record, new SendCallback(record, metrics))));
+      } catch (KafkaException e) {
+        if (journal == null) {
+          throw e;
+        }
+        spill(record);
+      }
+    }
+    context.getMetrics().count("kafka.producer.count", 1);
+    mirror(record);
+  }
+
+  /**
+   * Sends a copy of the message to every mirror cluster. With the ALL policy in sync mode, the batch
+   * waits for the mirrors' acknowledgments and fails if any mirror fails. Otherwise mirror failures
+   * are only counted.
+   */
+  private void mirror(ProducerRecord<String, byte[]> record) throws IOException, InterruptedException {
+    for (MirrorCluster mirror : mirrors) {
+      if (mirrorAll && !isAsync) {
+        int window = syncWindow * mirrors.size();
+        if (mirrorPending.size() >= window) {
+          awaitMirrors(window - 1);
+        }
+        mirrorPending.add(mirror.send(record));
+      } else {
+        try {
+          mirror.send(record);
+        } catch (KafkaException e) {
+          LOG.debug("Failed to mirror message to {}", mirror.getName(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits on the oldest mirror sends until at most {@code limit} are left in flight. If any send has
+   * failed, waits for everything still in flight and fails the batch.
+   */
+  private void awaitMirrors(int limit) throws IOException, InterruptedException {
+    ExecutionException failure = null;
+    while (mirrorPending.size() > limit) {
+      try {
+        mirrorPending.poll().get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e;
         }
+        limit = 0;
       }
+    }
+    if (failure != null) {
+      throw new IOException("Failed to publish batch to mirror cluster", failure.getCause());
+    }
+  }
+
+  private Producer<String, byte[]> createProducer(Properties props) {
+    if (isShared) {
+      return ProducerPool.shared().borrow(props);
+    }
+    return new org.apache.kafka.clients.producer.KafkaProducer<String, byte[]>(props);
+  }
+
+  private void closeProducer(Producer<String, byte[]> producer) {
+    if (isShared) {
+      ProducerPool.shared().release(producer);
+    } else {
+      producer.close();
+    }
+  }
+
+  /**
+   * Returns the partition the partitioner picks for the key. Primitive keys are passed unboxed.
+   */
+  private int partitionOf(@Nullable Object partitionKey, int numPartitions) {
+    if (partitionKey == null) {
+      return partitioner.partition(numPartitions);
+    }
+    if (partitionKey instanceof Integer) {
+      return partitioner.partition(((Integer) partitionKey).intValue(), numPartitions);
+    }
+    if (partitionKey instanceof Long) {
+      return partitioner.partition(((Long) partitionKey).longValue(), numPartitions);
+    }
+    if (partitionKey instanceof CharSequence) {
+      return partitioner.partition(partitionKey.toString(), numPartitions);
+    }
+    if (partitionKey instanceof byte[]) {
+      return partitioner.partition((byte[]) partitionKey, numPartitions);
+    }
+    return partitioner.partition(partitionKey.hashCode(), numPartitions);
+  }
+
+  /**
+   * Records the batch sizes of the write that just finished and, once per metrics interval, emits
+   * the p50, p99 and max of every topic's histograms as gauges.
+   */
+  private void emitTopicMetrics() {
+    for (TopicMetrics metrics : topicMetrics.values()) {
+      if (metrics.batchMessages > 0) {
+        metrics.batchSize.record(metrics.batchMessages);
+        metrics.batchMessages = 0;
+      }
+    }
+    long now = System.currentTimeMillis();
+    if (now < nextMetricsEmit) {
+      return;
+    }
+    nextMetricsEmit = now + METRICS_INTERVAL_MS;
+    for (Map.Entry<String, TopicMetrics> entry : topicMetrics.entrySet()) {
+      TopicMetrics metrics = entry.getValue();
+      emitPercentiles("kafka.producer.latency.us", entry.getKey(), metrics.latencyMicros.drain());
+      emitPercentiles("kafka.producer.message.bytes", entry.getKey(), metrics.messageBytes.drain());
+      emitPercentiles("kafka.producer.batch.messages", entry.getKey(), metrics.batchSize.drain());
+      emitPercentiles("kafka.producer.chunked.bytes", entry.getKey(), metrics.chunkedBytes.drain());
+    }
+    for (MirrorCluster mirror : mirrors) {
+      emitPercentiles("kafka.mirror.latency.us", mirror.getName(), mirror.drainLatency());
+    }
+  }
+
+  private void emitPercentiles(String name, String topic, ValueHistogram.Snapshot snapshot) {
+    if (snapshot.getCount() == 0) {
+      return;
+    }
+    context.getMetrics().gauge(name + ".p50." + topic, snapshot.getPercentile(50));
+    context.getMetrics().gauge(name + ".p99." + topic, snapshot.getPercentile(99));
+    context.getMetrics().gauge(name + ".max." + topic, snapshot.getMax());
+  }
+
+  /**
+   * Histograms of one topic. The histograms are recorded from the producer's callback thread
+   * as well, the batch counter only from the writing thread.
+   */
+  private static final class TopicMetrics {
+    private final ValueHistogram latencyMicros = new ValueHistogram();
+    private final ValueHistogram messageBytes = new ValueHistogram();
+    private final ValueHistogram batchSize = new ValueHistogram();
+    private final ValueHistogram chunkedBytes = new ValueHistogram();
+
+    // Messages sent to the topic in the current write.
+    private int batchMessages;
+  }
+
+  /**
+   * Appends a message that could not be sent to the spill journal.
+   *
+   * @throws IOException if the journal is full.
+   */
+  private void spill(ProducerRecord<String, byte[]> record) throws IOException {
+    if (!journal.append(record.topic(), record.partition(), record.key(), record.value())) {
+      throw new IOException("Spill journal is full, failed to publish message to topic " + record.topic());
+    }
+    context.getMetrics().count("kafka.spill.count", 1);
+  }
 
-      // Write to all the configured topics
-      for(String topic : topics) {
-        partitionKey = partitionKey % producer.partitionsFor(topic).size();
-        if (isAsync) {
-          producer.send(new ProducerRecord<String, String>(topic, partitionKey, key, body), new Callback() {
-            @Override
-            public void onCompletion(RecordMetadata meta, Exception e) {
-              if (meta != null) {
-                context.getMetrics().count("kafka.async.success", 1);
-              }
-              
-              if (e != null) {
-                context.getMetrics().count("kafka.async.error", 1);  
-              }
-            }
-          });
+  /**
+   * Replays spilled messages without waiting for them. Removes the acknowledged prefix of the messages
+   * replayed by earlier writes from the journal, then replays more so that up to a sync window are in
+   * flight. A replay that fails or is not acknowledged within the spill timeout stops replaying until the
+   * spill timeout has passed. The messages replayed after it are replayed again, so they may be published
+   * twice.
+   */
+  private void replay() throws IOException, InterruptedException {
+    long now = System.currentTimeMillis();
+    int acknowledged = 0;
+    boolean failed = false;
+    while (!replaying.isEmpty()) {
+      PendingSend send = replaying.peek();
+      if (!send.future.isDone()) {
+        failed = now - send.startMillis >= spillTimeoutMs;
+        break;
+      }
+      replaying.poll();
+      try {
+        send.future.get();
+        acknowledged++;
+      } catch (ExecutionException e) {
+        partitionCounts.invalidate(e.getCause());
+        failed = true;
+        break;
+      }
+    }
+    journal.consume(acknowledged);
+    context.getMetrics().count("kafka.spill.replayed", acknowledged);
+    if (failed) {
+      replaying.clear();
+      nextReplay = now + spillTimeoutMs;
+      return;
+    }
+    if (now < nextReplay || replaying.size() >= syncWindow) {
+      return;
+    }
+
+    List<SpillJournal.Entry> entries = journal.peek(syncWindow);
+    for (SpillJournal.Entry entry : entries.subList(replaying.size(), entries.size())) {
+      ProducerRecord<String, byte[]> record =
+        new ProducerRecord<String, byte[]>(entry.topic, entry.partition, entry.key, entry.body);
+      try {
+        replaying.add(new PendingSend(record, producer.send(record)));
+      } catch (KafkaException e) {
+        LOG.debug("Failed to replay spilled messages", e);
+        nextReplay = now + spillTimeoutMs;
+        return;
+      }
+    }
+  }
+
+  /**
+   * A send waiting for its acknowledgment.
+   */
+  private static final class PendingSend {
+    private final ProducerRecord<String, byte[]> record;
+    private final Future<RecordMetadata> future;
+    private final long startMillis = System.currentTimeMillis();
+
+    PendingSend(ProducerRecord<String, byte[]> record, Future<RecordMetadata> future) {
+      this.record = record;
+      this.future = future;
+    }
+  }
+
+  /**
+   * Completion callback for sends. Records the send-to-ack latency and, in async mode, releases the
+   * in-flight room taken by the message and spills it if it failed. Failures in sync mode are handled
+   * by awaitPending.
+   */
+  private final class SendCallback implements Callback {
+    private final ProducerRecord<String, byte[]> record;
+    private final TopicMetrics metrics;
+    private final long startNanos = System.nanoTime();
+
+    SendCallback(ProducerRecord<String, byte[]> record, TopicMetrics metrics) {
+      this.record = record;
+      this.metrics = metrics;
+    }
+
+    @Override
+    public void onCompletion(RecordMetadata meta, Exception e) {
+      if (meta != null) {
+        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        metrics.latencyMicros.record(latencyMicros);
+        if (windowController != null) {
+          windowController.recordAck(latencyMicros);
+        }
+      }
+      if (!isAsync) {
+        return;
+      }
+
+      inFlight.release(record.value().length);
+      if (meta != null) {
+        context.getMetrics().count("kafka.async.success", 1);
+      }
+
+      if (e != null) {
+        context.getMetrics().count("kafka.async.error", 1);
+        partitionCounts.invalidate(e);
+        if (journal != null) {
+          try {
+            spill(record);
+          } catch (IOException ioe) {
+            LOG.error("Failed to spill message to topic {}", record.topic(), ioe);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Parses producer properties specified as comma separated 'name:value' pairs.
+   */
+  private static Map<String, String> parseProducerProperties(@Nullable String properties) {
+    if (properties == null || properties.trim().isEmpty()) {
+      return ImmutableMap.of();
+    }
+    try {
+      return Splitter.on(',').omitEmptyStrings().trimResults()
+        .withKeyValueSeparator(Splitter.on(':').trimResults()).split(properties);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Producer properties should be comma separated 'name:value' pairs, " +
+                                           "found '" + properties + "'", e);
+    }
+  }
+
+  /**
+   * Returns a map of serializers per record schema that keeps the most recently used ones, so that
+   * upstream stages producing a new schema instance per record don't grow it without bounds.
+   */
+  private static <T> Map<Schema, T> newSerializerCache() {
+    return new LinkedHashMap<Schema, T>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Schema, T> eldest) {
+        return size() > MAX_CACHED_SERIALIZERS;
+      }
+    };
+  }
+
+  /**
+   * Serializes the record into the configured message format.
+   */
+  private byte[] serialize(StructuredRecord object) throws IOException {
+    if (csvFormat != null) {
+      if (serializer == null || serializer.getSchema() != object.getSchema()) {
+        serializer = serializers.get(object.getSchema());
+        if (serializer == null) {
+          serializer = new DelimitedRecordSerializer(object.getSchema(), csvFormat);
+          serializers.put(object.getSchema(), serializer);
+        }
+      }
+      return serializer.serialize(object).getBytes(Charsets.UTF_8);
+    }
+    if (format.equals(FORMAT_AVRO)) {
+      if (avroSerializer == null || avroSerializer.getSchema() != object.getSchema()) {
+        avroSerializer = avroSerializers.get(object.getSchema());
+        if (avroSerializer == null) {
+          avroSerializer = new AvroRecordSerializer(object.getSchema());
+          avroSerializers.put(object.getSchema(), avroSerializer);
+        }
+      }
+      return avroSerializer.serialize(object);
+    }
+    return StructuredRecordStringConverter.toJsonString(object).getBytes(Charsets.UTF_8);
+  }
+
+  /**
+   * Waits on the oldest pending sends until at most {@code limit} are left in flight. If any
+   * send has failed, waits for everything still in flight and fails the batch. With a spill journal,
+   * failed sends and sends not acknowledged within the spill timeout are spilled instead. A spilled
+   * message may still be delivered by the producer later, so it can be published twice. If the
+   * journal is full, the remaining sends are still waited on before the batch fails, so that none
+   * are left pending for the next batch.
+   *
+   * @param limit number of sends allowed to remain in flight.
+   * @throws IOException if any of the sends failed, or could not be spilled.
+   */
+  private void awaitPending(int limit) throws IOException, InterruptedException {
+    IOException failure = null;
+    while (pending.size() > limit) {
+      PendingSend send = pending.poll();
+      try {
+        if (journal == null) {
+          send.future.get();
         } else {
-          // Waits infinitely to push the message through. 
-          producer.send(new ProducerRecord<String, String>(topic, partitionKey, key, body)).get();
+          long remaining = send.startMillis + spillTimeoutMs - System.currentTimeMillis();
+          send.future.get(Math.max(0L, remaining), TimeUnit.MILLISECONDS);
+        }
+      } catch (ExecutionException e) {
+        partitionCounts.invalidate(e.getCause());
+        if (journal == null) {
+          if (failure == null) {
+            failure = new IOException("Failed to publish batch to Kafka", e.getCause());
+          }
+        } else if (failure == null) {
+          failure = trySpill(send.record);
+        }
+      } catch (TimeoutException e) {
+        if (failure == null) {
+          failure = trySpill(send.record);
         }
-        context.getMetrics().count("kafka.producer.count", 1);
+      }
+      if (failure != null) {
+        limit = 0;
       }
     }
-    return count;
+    if (failure != null) {
+      throw failure;
+    }
   }
 
+  /**
+   * Spills a message whose send failed or was not acknowledged in time.
+   *
+   * @return the failure if the journal is full, null if the message was spilled.
+   */
+  @Nullable
+  private IOException trySpill(ProducerRecord<String, byte[]> record) {
+    try {
+      spill(record);
+      return null;
+    } catch (IOException e) {
+      return e;
+    }
+  }
 
   @Override
   public void destroy() {
     super.destroy();
-    producer.close();
+    if (metadataRefresher != null) {
+      metadataRefresher.shutdownNow();
+    }
+    closeProducer(producer);
+    for (MirrorCluster mirror : mirrors) {
+      closeProducer(mirror.getProducer());
+    }
+    if (journal != null) {
+      journal.close();
+    }
   }
 
   public static class Config extends PluginConfig {
@@ -242,21 +1004,176 @@ public class KafkaProducer extends RealtimeSink<StructuredRecord> {
       "Default is FALSE")
     private String isAsync;
     
+    @Name("shareproducer")
+    @Description("Specifies whether instances of this sink in the same pipeline and JVM, with the same brokers " +
+      "and producer settings, share one producer, with its I/O thread, buffer memory and connections. " +
+      "Sinks of different pipelines never share producers. Default is FALSE")
+    @Nullable
+    private String shareProducer;
+
     @Name("partitionfield")
     @Description("Specify field that should be used as partition ID. Should be a int or long")
     private String partitionField;
 
+    @Name("partitioner")
+    @Description("Strategy used to pick the partition of a message. MODULO uses the partition field, or the " +
+      "hashCode() of a string field, modulo the number of partitions. MURMUR2 hashes it like Kafka's default " +
+      "partitioner, strings by their UTF-8 bytes, so string keys go to other partitions than with MODULO. " +
+      "CONSISTENT hashes it on a ring so that few keys move when partitions are added, ROUNDROBIN spreads " +
+      "messages evenly and STICKY sends each batch to a single partition. Default is MODULO")
+    @Nullable
+    private String partitioner;
+
     @Name("key")
     @Description("Specify the key field to be used in the message")
     private String key;
     
+    @Name("coalesce")
+    @Description("Specifies whether only the last record of every key in a batch is published, for topics " +
+      "with log compaction. Records with the same key for different topics are not coalesced. Requires the " +
+      "key field. Default is FALSE")
+    @Nullable
+    private String coalesce;
+
+    @Name("mirrorbrokers")
+    @Description("Broker lists of secondary clusters every message is also written to, separated by ';'. " +
+      "Messages are serialized once and sent to all clusters in parallel")
+    @Nullable
+    private String mirrorBrokers;
+
+    @Name("mirrorpolicy")
+    @Description("ALL if every mirror cluster must acknowledge a message like the primary one, PRIMARY if " +
+      "only the primary cluster must and mirrors are best effort. In async mode mirrors are always best " +
+      "effort. With ALL in sync mode a failed mirror send fails the write of the whole batch, even if the " +
+      "primary cluster acknowledged it. Messages that fail on a mirror are never spilled, the spill journal " +
+      "only covers the primary cluster. Best effort mirror failures are only counted in the kafka.mirror.error " +
+      "metrics. Default is ALL")
+    @Nullable
+    private String mirrorPolicy;
+
     @Name("topics")
-    @Description("List of topics to which message needs to be published")
+    @Description("List of topics to which message needs to be published. Used for records that have " +
+      "no value for the topic field")
+    @Nullable
     private String topics;
+
+    @Name("topicfield")
+    @Description("Specify field that holds the topic each record should be published to. If the field is " +
+      "null the record is published to all the topics listed above")
+    @Nullable
+    private String topicField;
     
     @Name("format")
-    @Description("Format a structured record should be converted to")
+    @Description("Format a structured record should be converted to. One of JSON, AVRO, CSV, EXCEL, MYSQL, " +
+      "RFC4180 or TDF. AVRO messages are Avro binary prefixed with the schema fingerprint")
     private String format;
+
+    @Name("maxmessagebytes")
+    @Description("Largest message body sent as a single message. Larger bodies are split into chunks that " +
+      "share a message id and go to the same partition, to be put back together with MessageChunks.Assembler. " +
+      "Should leave room below the broker's max.message.bytes for the key and message overhead. Chunking is " +
+      "disabled if not set")
+    @Nullable
+    private Integer maxMessageBytes;
+
+    @Name("syncwindow")
+    @Description("Maximum number of messages in flight in sync mode before waiting for the oldest " +
+      "acknowledgment. The batch is failed if any message fails. Default is 1000")
+    @Nullable
+    private Integer syncWindow;
+
+    @Name("adaptivewindow")
+    @Description("Specifies whether the sync window is adjusted from the observed ack latency and throughput, " +
+      "between 1 and the sync window above. Only applies to sync mode. Default is FALSE")
+    @Nullable
+    private String adaptiveWindow;
+
+    @Name("minlatencyms")
+    @Description("p99 ack latency in milliseconds below which the adaptive window grows. Default is 5")
+    @Nullable
+    private Long minLatencyMs;
+
+    @Name("maxlatencyms")
+    @Description("p99 ack latency in milliseconds above which the adaptive window shrinks. Default is 100")
+    @Nullable
+    private Long maxLatencyMs;
+
+    @Name("maxinflightmessages")
+    @Description("Maximum number of messages waiting for an acknowledgment in async mode. The sink blocks " +
+      "when the limit is reached. Default is unlimited")
+    @Nullable
+    private Integer maxInFlightMessages;
+
+    @Name("maxinflightbytes")
+    @Description("Maximum number of message bytes waiting for an acknowledgment in async mode. The sink " +
+      "blocks when the limit is reached. Default is unlimited")
+    @Nullable
+    private Integer maxInFlightBytes;
+
+    @Name("metadatarefreshms")
+    @Description("Interval in milliseconds at which the partition count of the topics is refreshed. " +
+      "Counts are also refreshed when a send fails because of stale metadata. Default is 300000")
+    @Nullable
+    private Long metadataRefreshMs;
+
+    @Name("spilldir")
+    @Description("Local directory where messages that cannot be sent are journaled and replayed from once " +
+      "the brokers are reachable again. Messages are spilled when a send fails or is not acknowledged within " +
+      "the spill timeout, or in async mode when the in-flight limits are reached. Each write replays up to a " +
+      "sync window of spilled messages alongside the new ones, without waiting for them. Delivery is at least " +
+      "once: a spilled message may also be delivered by its original send, and replayed messages may land " +
+      "after newer messages of the same partition. Spilling is disabled if not set")
+    @Nullable
+    private String spillDir;
+
+    @Name("spillmaxbytes")
+    @Description("Maximum size in bytes of the spill journal. The batch is failed when the journal is full. " +
+      "Default is 1073741824")
+    @Nullable
+    private Long spillMaxBytes;
+
+    @Name("spilltimeoutms")
+    @Description("Time in milliseconds a sync mode send is waited on before its message is spilled. Also the " +
+      "time a replayed message is given to be acknowledged, and after which a failed replay is retried. " +
+      "Default is 30000")
+    @Nullable
+    private Long spillTimeoutMs;
+
+    @Name("batchsize")
+    @Description("Upper bound in bytes of the batch of messages the producer sends to a partition in " +
+      "one request. Default is the Kafka default")
+    @Nullable
+    private Integer batchSize;
+
+    @Name("lingerms")
+    @Description("Time in milliseconds the producer waits for more messages before sending a batch. " +
+      "Default is the Kafka default")
+    @Nullable
+    private Long lingerMs;
+
+    @Name("compressiontype")
+    @Description("Compression codec for batches of messages. One of NONE, GZIP, SNAPPY or LZ4. " +
+      "Default is NONE")
+    @Nullable
+    private String compressionType;
+
+    @Name("buffermemory")
+    @Description("Total memory in bytes the producer uses to buffer messages waiting to be sent. " +
+      "Default is the Kafka default")
+    @Nullable
+    private Long bufferMemory;
+
+    @Name("maxinflightrequests")
+    @Description("Maximum number of unacknowledged requests the producer sends on a single connection. " +
+      "Default is the Kafka default")
+    @Nullable
+    private Integer maxInFlightRequests;
+
+    @Name("producerproperties")
+    @Description("Additional Kafka producer properties as comma separated 'name:value' pairs. Properties " +
+      "configured above take precedence")
+    @Nullable
+    private String producerProperties;
     
     
     public Config(String brokers, String isAsync, String partitionField, String key, String topics,
@@ -268,6 +1185,79 @@ public class KafkaProducer extends RealtimeSink<StructuredRecord> {
       this.topics = topics;
       this.format = format;
     }
+
+    // Used by tests and benchmarks to tune the producer.
+    Config setCompressionType(String compressionType) {
+      this.compressionType = compressionType;
+      return this;
+    }
+
+    Config setBatching(Integer batchSize, Long lingerMs) {
+      this.batchSize = batchSize;
+      this.lingerMs = lingerMs;
+      return this;
+    }
+
+    Config setPartitioner(String partitioner) {
+      this.partitioner = partitioner;
+      return this;
+    }
+
+    Config setMaxMessageBytes(Integer maxMessageBytes) {
+      this.maxMessageBytes = maxMessageBytes;
+      return this;
+    }
+
+    Config setSyncWindow(Integer syncWindow) {
+      this.syncWindow = syncWindow;
+      return this;
+    }
+
+    Config setMirrors(String mirrorBrokers, String mirrorPolicy) {
+      this.mirrorBrokers = mirrorBrokers;
+      this.mirrorPolicy = mirrorPolicy;
+      return this;
+    }
+
+    Config setCoalesce(String coalesce) {
+      this.coalesce = coalesce;
+      return this;
+    }
+
+    Config setTopicField(String topicField) {
+      this.topicField = topicField;
+      return this;
+    }
+
+    Config setAdaptiveWindow(String adaptiveWindow, Long minLatencyMs, Long maxLatencyMs) {
+      this.adaptiveWindow = adaptiveWindow;
+      this.minLatencyMs = minLatencyMs;
+      this.maxLatencyMs = maxLatencyMs;
+      return this;
+    }
+
+    Config setInFlightLimits(Integer maxInFlightMessages, Integer maxInFlightBytes) {
+      this.maxInFlightMessages = maxInFlightMessages;
+      this.maxInFlightBytes = maxInFlightBytes;
+      return this;
+    }
+
+    Config setSpill(String spillDir, Long spillMaxBytes, Long spillTimeoutMs) {
+      this.spillDir = spillDir;
+      this.spillMaxBytes = spillMaxBytes;
+      this.spillTimeoutMs = spillTimeoutMs;
+      return this;
+    }
+
+    Config setShareProducer(String shareProducer) {
+      this.shareProducer = shareProducer;
+      return this;
+    }
+
+    Config setProducerProperties(String producerProperties) {
+      this.producerProperties = producerProperties;
+      return this;
+    }
   }
 }
 
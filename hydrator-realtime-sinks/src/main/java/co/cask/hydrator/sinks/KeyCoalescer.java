@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.base.Objects;
+
+import java.util.Arrays;
+import javax.annotation.Nullable;
+
+/**
+ * Remembers the position of the last record of every key in a batch, so that the {@link KafkaProducer}
+ * sink can drop the records of compacted topics that compaction would discard anyway.
+ *
+ * <p>Keys are qualified by a group, the topic a record is routed to, so that records for different
+ * topics are never coalesced. The table uses open addressing over parallel arrays, so no entry is
+ * allocated per key, and is reused from batch to batch.</p>
+ */
+final class KeyCoalescer {
+  private static final int MIN_CAPACITY = 16;
+
+  private Object[] keys = new Object[MIN_CAPACITY];
+  private Object[] groups = new Object[MIN_CAPACITY];
+  private int[] positions = new int[MIN_CAPACITY];
+  private int size;
+
+  /**
+   * Records the position of a record with the given key, replacing the position of earlier records.
+   */
+  void put(Object key, @Nullable Object group, int position) {
+    // Keeps the table at most half full, so that probe sequences stay short.
+    if ((size + 1) * 2 > keys.length) {
+      resize(keys.length * 2);
+    }
+    int slot = find(key, group);
+    if (keys[slot] == null) {
+      keys[slot] = key;
+      groups[slot] = group;
+      size++;
+    }
+    positions[slot] = position;
+  }
+
+  /**
+   * Returns whether the record at the given position is the last one recorded with its key.
+   */
+  boolean isLast(Object key, @Nullable Object group, int position) {
+    int slot = find(key, group);
+    return keys[slot] == null || positions[slot] == position;
+  }
+
+  /**
+   * Forgets all keys. The table keeps its capacity.
+   */
+  void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, null);
+      Arrays.fill(groups, null);
+      size = 0;
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  private int find(Object key, @Nullable Object group) {
+    int mask = keys.length - 1;
+    int slot = hash(key, group) & mask;
+    while (keys[slot] != null && !(keys[slot].equals(key) && Objects.equal(groups[slot], group))) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize(int capacity) {
+    Object[] oldKeys = keys;
+    Object[] oldGroups = groups;
+    int[] oldPositions = positions;
+    keys = new Object[capacity];
+    groups = new Object[capacity];
+    positions = new int[capacity];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null) {
+        int slot = find(oldKeys[i], oldGroups[i]);
+        keys[slot] = oldKeys[i];
+        groups[slot] = oldGroups[i];
+        positions[slot] = oldPositions[i];
+      }
+    }
+  }
+
+  // Murmur3 finalizer over the combined hash, so that similar keys spread over the whole table.
+  private static int hash(Object key, @Nullable Object group) {
+    int h = key.hashCode() * 31 + (group == null ? 0 : group.hashCode());
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
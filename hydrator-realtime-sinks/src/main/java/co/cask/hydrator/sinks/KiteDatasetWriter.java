@@ -4,29 +4,45 @@ import co.cask.cdap.api.annotation.Description;
 import co.cask.cdap.api.annotation.Name;
 import co.cask.cdap.api.annotation.Plugin;
 import co.cask.cdap.api.data.format.StructuredRecord;
-import co.cask.cdap.api.data.format.UnexpectedFormatException;
+import co.cask.cdap.api.data.schema.Schema;
+import co.cask.cdap.api.data.schema.SchemaHash;
 import co.cask.cdap.api.plugin.PluginConfig;
 import co.cask.cdap.etl.api.PipelineConfigurer;
 import co.cask.cdap.etl.api.realtime.DataWriter;
 import co.cask.cdap.etl.api.realtime.RealtimeContext;
 import co.cask.cdap.etl.api.realtime.RealtimeSink;
 import com.google.common.collect.Maps;
-import org.apache.avro.Schema;
+import com.google.common.collect.Sets;
+import org.apache.avro.SchemaNormalization;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.NullNode;
+import org.kitesdk.data.CompressionType;
 import org.kitesdk.data.Dataset;
 import org.kitesdk.data.DatasetDescriptor;
 import org.kitesdk.data.DatasetWriter;
 import org.kitesdk.data.Datasets;
-import org.kitesdk.data.spi.Registration;
+import org.kitesdk.data.Flushable;
+import org.kitesdk.data.Format;
+import org.kitesdk.data.Formats;
+import org.kitesdk.data.PartitionStrategy;
+import org.kitesdk.data.Syncable;
+import org.kitesdk.data.spi.SchemaValidationUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.URI;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nullable;
 
 /**
  * Kite Dataset Writer - Writes Kite Dataset in realtime. 
@@ -36,11 +52,60 @@ import java.util.Map;
 @Description("Writes to Kite Dataset")
 public class KiteDatasetWriter extends RealtimeSink<StructuredRecord> {
   private static final Logger LOG = LoggerFactory.getLogger(KiteDatasetWriter.class);
+
+  // Descriptor property bounding the number of partition writers Kite keeps open. The least recently
+  // used writer is closed when a record goes to a partition without an open writer.
+  private static final String WRITER_CACHE_SIZE = "kite.writer.cache-size";
+  private static final int DEFAULT_WRITER_CACHE_SIZE = 10;
+
+  // Descriptor properties Kite passes to the Parquet writers of the dataset.
+  private static final String PARQUET_ROW_GROUP_SIZE = "parquet.block.size";
+  private static final String PARQUET_PAGE_SIZE = "parquet.page.size";
+  private static final long DEFAULT_ROW_GROUP_BYTES = 128L * 1024 * 1024;
+  private static final long DEFAULT_PARQUET_MEMORY = 1024L * 1024 * 1024;
+  private static final long DEFAULT_COMPACT_INTERVAL_MS = TimeUnit.MINUTES.toMillis(5);
+
+  // Number of records a background writer takes from its buffer at once.
+  private static final int DRAIN_BATCH = 1024;
+  // How long the sink waits for space in a full buffer.
+  private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final int DEFAULT_BUFFER_SIZE = 8192;
+  private static final int MAX_SCHEMA_ENTRIES = 64;
   
   private Config config;
-  private DatasetWriter<GenericRecord> writer = null;
+  private RealtimeContext context;
   private Dataset<GenericRecord> dataset;
-  private boolean writerInitialized = false;
+  // Schema of the dataset, and the fingerprints of the schemas it had before. Records of those are
+  // projected to the dataset schema rather than changing the dataset schema back.
+  private org.apache.avro.Schema datasetSchema;
+  private final Set<Long> previousSchemas = Sets.newHashSet();
+  // Every version of the dataset by the fingerprint of its schema, so that writers write records
+  // converted before a schema change with a writer of the schema they were converted to.
+  private final Map<Long, Dataset<GenericRecord>> datasetVersions = Maps.newConcurrentMap();
+
+  // Record schemas by hash, so that equal schemas share one compiled converter. Only the most recently
+  // used are kept, so that upstream stages producing a new schema instance per record don't grow it
+  // without bounds.
+  private final Map<SchemaHash, SchemaEntry> entries = new LinkedHashMap<SchemaHash, SchemaEntry>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<SchemaHash, SchemaEntry> eldest) {
+      return size() > MAX_SCHEMA_ENTRIES;
+    }
+  };
+
+  // Schema and entry of the last record.
+  private Schema lastSchema;
+  private SchemaEntry entry;
+
+  // Writers of the sink. A single one, written by the sink itself unless async, or several each
+  // written by its own background thread.
+  private Shard[] shards;
+  private boolean async;
+  private int nextShard;
+  private volatile boolean running;
+
+  // Merges small files of the dataset in the background, once the dataset is open.
+  private DatasetCompactor compactor;
   
   // Only used while testing. 
   public KiteDatasetWriter(Config config) {
@@ -50,141 +115,679 @@ public class KiteDatasetWriter extends RealtimeSink<StructuredRecord> {
   @Override
   public void configurePipeline(PipelineConfigurer pipelineConfigurer) {
     super.configurePipeline(pipelineConfigurer);
+    if (config.partitionStrategy != null && !config.partitionStrategy.trim().isEmpty()) {
+      PartitionStrategies.parse(config.partitionStrategy);
+    }
+    if (config.maxOpenWriters != null && config.maxOpenWriters < 1) {
+      throw new IllegalArgumentException("Maximum open writers should be at least 1, found " +
+                                           config.maxOpenWriters);
+    }
+    checkPositive("Roll records", config.rollRecords);
+    checkPositive("Roll bytes", config.rollBytes);
+    checkPositive("Roll interval", config.rollIntervalMs);
+    checkPositive("Flush interval", config.flushIntervalMs);
+    if (config.asyncBufferSize != null && config.asyncBufferSize < 1) {
+      throw new IllegalArgumentException("Async buffer size should be at least 1, found " + config.asyncBufferSize);
+    }
+    if (config.shards != null && config.shards < 1) {
+      throw new IllegalArgumentException("Number of shards should be at least 1, found " + config.shards);
+    }
+    Format format = Formats.fromString(config.format == null ? Formats.AVRO.getName() : config.format.toLowerCase());
+    if (config.compression != null) {
+      CompressionType compression = CompressionType.forName(config.compression.toLowerCase());
+      // Kite only rejects the pair once the dataset is created, with the first record.
+      if (!format.getSupportedCompressionTypes().contains(compression)) {
+        throw new IllegalArgumentException("Compression " + config.compression + " is not supported for format " +
+                                             format.getName() + ", supported are " +
+                                             format.getSupportedCompressionTypes());
+      }
+    }
+    checkPositive("Row group size", config.rowGroupBytes);
+    checkPositive("Page size", config.pageBytes);
+    checkPositive("Maximum Parquet memory", config.maxParquetMemory);
+    checkPositive("Compaction target size", config.compactTargetBytes);
+    checkPositive("Compaction interval", config.compactIntervalMs);
+    checkPositive("Compaction rate", config.compactBytesPerSecond);
+    if (isParquet()) {
+      long maxMemory = config.maxParquetMemory == null ? DEFAULT_PARQUET_MEMORY : config.maxParquetMemory;
+      if (parquetMemoryBound() > maxMemory) {
+        throw new IllegalArgumentException(
+          "Parquet writers may buffer up to " + parquetMemoryBound() + " bytes, one row group for each of " +
+            openFilesBound() + " open files, more than the maximum of " + maxMemory + " bytes. Reduce the row " +
+            "group size, the maximum open writers or the number of shards");
+      }
+    }
+  }
+
+  private boolean isParquet() {
+    return config.format != null && Formats.fromString(config.format.toLowerCase()) == Formats.PARQUET;
+  }
+
+  /**
+   * Returns the most files the sink keeps open at once: one per shard, or as many as the partition
+   * writer cache holds for partitioned datasets.
+   */
+  private long openFilesBound() {
+    int shards = config.shards == null ? 1 : config.shards;
+    return (long) shards * filesPerShard();
+  }
+
+  /**
+   * Returns the most files a shard keeps open at once.
+   */
+  private int filesPerShard() {
+    boolean partitioned = config.partitionStrategy != null && !config.partitionStrategy.trim().isEmpty();
+    return !partitioned ? 1 : config.maxOpenWriters == null ? DEFAULT_WRITER_CACHE_SIZE : config.maxOpenWriters;
+  }
+
+  private long rowGroupBytes() {
+    return config.rowGroupBytes == null ? DEFAULT_ROW_GROUP_BYTES : config.rowGroupBytes;
+  }
+
+  /**
+   * Returns the most memory the Parquet writers use, as each open file buffers up to a row group.
+   */
+  private long parquetMemoryBound() {
+    return openFilesBound() * rowGroupBytes();
+  }
+
+  private static void checkPositive(String name, Long value) {
+    if (value != null && value < 1) {
+      throw new IllegalArgumentException(name + " should be at least 1, found " + value);
+    }
   }
 
   @Override
   public void initialize(RealtimeContext context) throws Exception {
     super.initialize(context);
+    this.context = context;
+    int numShards = config.shards == null ? 1 : config.shards;
+    // Shards only write in parallel with a thread each.
+    async = numShards > 1 || (config.async != null && config.async.equalsIgnoreCase("TRUE"));
+    running = true;
+    shards = new Shard[numShards];
+    for (int i = 0; i < numShards; i++) {
+      shards[i] = new Shard(i);
+    }
+    if (isParquet()) {
+      LOG.info("Parquet writers of {} buffer up to {} bytes in {} open files", config.uri, parquetMemoryBound(),
+               openFilesBound());
+    }
   }
 
   @Override
   public int write(Iterable<StructuredRecord> records, DataWriter dataWriter) throws Exception {
     int count = 0;
+    if (async) {
+      // Conversion happens here, writing in the background writers.
+      for (Shard shard : shards) {
+        shard.check();
+      }
+      for (StructuredRecord record : records) {
+        GenericRecord genericRecord = transform(record);
+        shards[shardOf(record)].enqueue(genericRecord);
+        count++;
+      }
+      int queued = 0;
+      for (Shard shard : shards) {
+        shard.wake();
+        queued += shard.buffer.size();
+      }
+      context.getMetrics().gauge("kite.async.queued", queued);
+      emitMetrics();
+      return count;
+    }
+
+    Shard shard = shards[0];
+    long now = System.currentTimeMillis();
+    shard.rollIfDue(now);
     // Iterate through structured record.
     for (StructuredRecord record : records) {
-      // Translate it to GenericRecord.
+      // Translate it to GenericRecord and writes it to kite dataset.
       GenericRecord genericRecord = transform(record);
-      
-      // This could be in initialize if there is a way to get input and output schema
-      if (!writerInitialized) {
-        ClassLoader cl = Thread.currentThread().getContextClassLoader();
-        try {
-          Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
-          if (!Datasets.exists(config.uri)) {
-            DatasetDescriptor descriptor = new DatasetDescriptor.Builder()
-              .schema(genericRecord.getSchema()).build();
-            dataset = Datasets.create(config.uri, descriptor);
-          }
-          writer = dataset.newWriter();
-        } finally {
-          Thread.currentThread().setContextClassLoader(cl);
-          writerInitialized = true;
-        }
+      shard.append(genericRecord, now);
+      count++;
+    }
+    shard.flushIfDue(now);
+    emitMetrics();
+    return count;
+  }
+
+  private void emitMetrics() {
+    if (isParquet()) {
+      // Each file open right now buffers up to a row group.
+      long openFiles = 0;
+      for (Shard shard : shards) {
+        openFiles += shard.openFiles;
       }
-      
-      // Writes the record to kite dataset.
-      if(writer != null) {
-        writer.write(genericRecord);
-        count++;
+      context.getMetrics().gauge("kite.parquet.open.files", openFiles);
+      context.getMetrics().gauge("kite.parquet.memory.bound", openFiles * rowGroupBytes());
+    }
+    if (compactor != null) {
+      long files = compactor.drainMergedFiles();
+      long bytes = compactor.drainMergedBytes();
+      if (files > 0) {
+        context.getMetrics().count("kite.compaction.files", (int) files);
+        context.getMetrics().count("kite.compaction.bytes", (int) Math.min(Integer.MAX_VALUE, bytes));
       }
-      
     }
-    
-    return count;
   }
 
   @Override
   public void destroy() {
     super.destroy();
-    if(writer != null) {
-      writer.close();
+    // Background writers write the records left in their buffer before they stop.
+    running = false;
+    if (shards == null) {
+      return;
+    }
+    for (Shard shard : shards) {
+      shard.wake();
+      shard.join();
+    }
+    for (Shard shard : shards) {
+      shard.close();
+    }
+    if (compactor != null) {
+      compactor.stop();
+    }
+  }
+
+  /**
+   * Returns the shard of a record, by the hash of its shard field, or round-robin for records without one.
+   */
+  private int shardOf(StructuredRecord record) {
+    if (shards.length == 1) {
+      return 0;
+    }
+    Object key = config.shardField == null ? null : record.get(config.shardField);
+    if (key == null) {
+      nextShard = nextShard + 1 == shards.length ? 0 : nextShard + 1;
+      return nextShard;
+    }
+    return (key.hashCode() & Integer.MAX_VALUE) % shards.length;
+  }
+
+  /**
+   * One writer of the dataset with its own files, roll policy and, in async mode, its own buffer and
+   * background thread. The writer is only used by one thread: the sink's, or the background thread.
+   */
+  private final class Shard implements Runnable {
+    private final int id;
+    private final WriterRollPolicy rollPolicy;
+    private DatasetWriter<GenericRecord> writer;
+    private long lastFlushMillis;
+    // Dataset version the writer writes, and the schema of the last record, known to be of that version.
+    private Dataset<GenericRecord> writerDataset;
+    private org.apache.avro.Schema lastRecordSchema;
+
+    // Records converted by the sink and not yet written by the background thread, in async mode.
+    private final SpscRingBuffer<GenericRecord> buffer;
+    private final Thread thread;
+    private volatile Throwable failure;
+    // Set while the background thread waits for records, so that the sink only wakes it when needed.
+    private volatile boolean waiting;
+    // Files the writer has open, at most one per record written since it was opened, read for metrics.
+    private final int maxOpenFiles;
+    private volatile int openFiles;
+
+    Shard(int id) {
+      this.id = id;
+      this.maxOpenFiles = filesPerShard();
+      this.rollPolicy = new WriterRollPolicy(config.rollRecords, config.rollBytes, config.rollIntervalMs);
+      if (async) {
+        buffer = new SpscRingBuffer<GenericRecord>(
+          config.asyncBufferSize == null ? DEFAULT_BUFFER_SIZE : config.asyncBufferSize);
+        thread = new Thread(this, "kite-writer-" + config.uri + "-" + id);
+        thread.setDaemon(true);
+        thread.setContextClassLoader(KiteDatasetWriter.class.getClassLoader());
+        thread.start();
+      } else {
+        buffer = null;
+        thread = null;
+      }
+    }
+
+    /**
+     * Writes the records handed over by the sink, and rolls and flushes the writer while no records
+     * arrive. Waits for records without polling, waking up only to roll or flush the writer when due.
+     * Once the sink stops, writes the records still in the buffer and exits.
+     */
+    @Override
+    public void run() {
+      List<GenericRecord> batch = new ArrayList<GenericRecord>(DRAIN_BATCH);
+      try {
+        while (true) {
+          // Read before draining, so that records added before the sink stopped are written.
+          boolean stopping = !running;
+          batch.clear();
+          buffer.drainTo(batch, DRAIN_BATCH);
+
+          long now = System.currentTimeMillis();
+          rollIfDue(now);
+          for (GenericRecord record : batch) {
+            append(record, now);
+          }
+          flushIfDue(now);
+
+          if (batch.isEmpty()) {
+            if (stopping) {
+              return;
+            }
+            await(now);
+          }
+        }
+      } catch (Throwable t) {
+        LOG.error("Background writer {} of {} failed", id, config.uri, t);
+        failure = t;
+      }
+    }
+
+    /**
+     * Writes a record, opening the writer on the first one and rolling it once full. Records of another
+     * dataset schema than the previous one go to a new writer of that schema.
+     */
+    void append(GenericRecord genericRecord, long now) {
+      org.apache.avro.Schema schema = genericRecord.getSchema();
+      if (schema != lastRecordSchema) {
+        Dataset<GenericRecord> version = datasetVersions.get(SchemaNormalization.parsingFingerprint64(schema));
+        if (writer != null && version != writerDataset) {
+          LOG.debug("Rolling writer {} of {} to a new schema", id, config.uri);
+          close();
+          context.getMetrics().count("kite.writer.rolled", 1);
+        }
+        writerDataset = version;
+        lastRecordSchema = schema;
+      }
+      if (writer == null) {
+        open(now);
+      }
+      writer.write(genericRecord);
+      rollPolicy.written(genericRecord);
+      if (openFiles < maxOpenFiles) {
+        openFiles = (int) Math.min(maxOpenFiles, rollPolicy.getRecords());
+      }
+      if (rollPolicy.isFull()) {
+        roll(now);
+      }
+    }
+
+    /**
+     * Waits until the sink hands over records or stops, or until the writer is due to be rolled or flushed.
+     */
+    private void await(long now) {
+      waiting = true;
+      // Records that came in before the flag was set are written right away. Records or a stop that come
+      // in after it wake the thread up, as does the sink at the end of every write.
+      if (buffer.size() == 0 && running) {
+        long deadline = nextDeadline();
+        if (deadline == Long.MAX_VALUE) {
+          LockSupport.park(this);
+        } else {
+          LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1L, deadline - now)));
+        }
+      }
+      waiting = false;
+    }
+
+    /**
+     * Returns the time at which the open writer is due to be rolled or flushed, or {@link Long#MAX_VALUE}.
+     */
+    private long nextDeadline() {
+      if (writer == null) {
+        return Long.MAX_VALUE;
+      }
+      long deadline = rollPolicy.rollDeadline();
+      if (config.flushIntervalMs != null) {
+        deadline = Math.min(deadline, lastFlushMillis + config.flushIntervalMs);
+      }
+      return deadline;
+    }
+
+    /**
+     * Wakes up the background thread if it is waiting for records.
+     */
+    void wake() {
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    /**
+     * Hands a record to the background thread, waiting while the buffer is full so that a slow file
+     * system slows down the pipeline instead of growing the buffer.
+     */
+    void enqueue(GenericRecord record) {
+      if (buffer.offer(record)) {
+        if (waiting) {
+          wake();
+        }
+        return;
+      }
+      long start = System.nanoTime();
+      while (!buffer.offer(record)) {
+        check();
+        // The thread may have started waiting before the buffer filled up.
+        wake();
+        LockSupport.parkNanos(FULL_PARK_NANOS);
+      }
+      context.getMetrics().count("kite.async.blocked.us",
+                                 (int) TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    /**
+     * Fails if the background thread failed or stopped.
+     */
+    void check() {
+      if (failure != null) {
+        throw new IllegalStateException("Background writer " + id + " of " + config.uri + " failed", failure);
+      }
+      if (!thread.isAlive()) {
+        throw new IllegalStateException("Background writer " + id + " of " + config.uri + " stopped");
+      }
+    }
+
+    void rollIfDue(long now) {
+      if (writer != null && rollPolicy.shouldRoll(now)) {
+        roll(now);
+      }
+    }
+
+    void flushIfDue(long now) {
+      if (writer != null && config.flushIntervalMs != null && now - lastFlushMillis >= config.flushIntervalMs) {
+        flush(now);
+      }
+    }
+
+    /**
+     * Closes the current files, which makes their records visible to readers, and opens new ones.
+     */
+    private void roll(long now) {
+      LOG.debug("Rolling writer {} of {} after {} records", id, config.uri, rollPolicy.getRecords());
+      close();
+      open(now);
+      context.getMetrics().count("kite.writer.rolled", 1);
+    }
+
+    private void open(long now) {
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+      try {
+        Thread.currentThread().setContextClassLoader(KiteDatasetWriter.class.getClassLoader());
+        writer = writerDataset.newWriter();
+      } finally {
+        Thread.currentThread().setContextClassLoader(cl);
+      }
+      rollPolicy.opened(now);
+      lastFlushMillis = now;
+    }
+
+    /**
+     * Flushes buffered records to the file system and, for writers that support it, syncs them to disk.
+     * Writers that can do neither only make their records durable when rolled.
+     */
+    private void flush(long now) {
+      lastFlushMillis = now;
+      if (!(writer instanceof Flushable) && !(writer instanceof Syncable)) {
+        return;
+      }
+      long start = System.nanoTime();
+      if (writer instanceof Flushable) {
+        ((Flushable) writer).flush();
+      }
+      if (writer instanceof Syncable) {
+        ((Syncable) writer).sync();
+      }
+      context.getMetrics().count("kite.writer.flushed", 1);
+      context.getMetrics().gauge("kite.writer.flush.latency.us",
+                                 TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    void join() {
+      if (thread == null) {
+        return;
+      }
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOG.warn("Interrupted while waiting for background writer {} of {}", id, config.uri);
+      }
+    }
+
+    void close() {
+      if(writer != null) {
+        writer.close();
+        writer = null;
+        openFiles = 0;
+      }
     }
   }
 
-  private GenericRecord transform(StructuredRecord structuredRecord) throws IOException {
-    co.cask.cdap.api.data.schema.Schema structuredRecordSchema = structuredRecord.getSchema();
-    org.apache.avro.Schema avroSchema = new org.apache.avro.Schema.Parser().parse(structuredRecordSchema.toString());
+  /**
+   * Loads the dataset, or creates it with the schema of the first record and the configured partition
+   * strategy, format and compression. Writer settings, such as the bound on open partition writers and
+   * the Parquet row group size, are applied to existing datasets as well.
+   */
+  private Dataset<GenericRecord> loadOrCreate(org.apache.avro.Schema schema) {
+    Map<String, String> properties = Maps.newHashMap();
+    if (config.maxOpenWriters != null) {
+      properties.put(WRITER_CACHE_SIZE, String.valueOf(config.maxOpenWriters));
+    }
+    if (config.rowGroupBytes != null) {
+      properties.put(PARQUET_ROW_GROUP_SIZE, String.valueOf(config.rowGroupBytes));
+    }
+    if (config.pageBytes != null) {
+      properties.put(PARQUET_PAGE_SIZE, String.valueOf(config.pageBytes));
+    }
+
+    if (!Datasets.exists(config.uri)) {
+      DatasetDescriptor.Builder builder = new DatasetDescriptor.Builder().schema(schema);
+      if (config.partitionStrategy != null && !config.partitionStrategy.trim().isEmpty()) {
+        builder.partitionStrategy(PartitionStrategies.parse(config.partitionStrategy));
+      }
+      if (config.format != null) {
+        builder.format(Formats.fromString(config.format.toLowerCase()));
+      }
+      if (config.compression != null) {
+        builder.compressionType(CompressionType.forName(config.compression.toLowerCase()));
+      }
+      for (Map.Entry<String, String> property : properties.entrySet()) {
+        builder.property(property.getKey(), property.getValue());
+      }
+      return Datasets.create(config.uri, builder.build(), GenericRecord.class);
+    }
 
-    GenericRecordBuilder recordBuilder = new GenericRecordBuilder(avroSchema);
-    for ( org.apache.avro.Schema.Field field : avroSchema.getFields()) {
-      String fieldName = field.name();
-      recordBuilder.set(fieldName, convertField(structuredRecord.get(fieldName), field.schema()));
+    Dataset<GenericRecord> existing = Datasets.load(config.uri, GenericRecord.class);
+    DatasetDescriptor descriptor = existing.getDescriptor();
+    if (config.partitionStrategy != null && !config.partitionStrategy.trim().isEmpty()) {
+      PartitionStrategy strategy = PartitionStrategies.parse(config.partitionStrategy);
+      if (!descriptor.isPartitioned() || !strategy.equals(descriptor.getPartitionStrategy())) {
+        LOG.warn("Dataset {} already exists with partition strategy {}, ignoring configured strategy {}",
+                 config.uri, descriptor.isPartitioned() ? descriptor.getPartitionStrategy() : "none", strategy);
+      }
+    }
+    if (config.format != null && !Formats.fromString(config.format.toLowerCase()).equals(descriptor.getFormat())) {
+      LOG.warn("Dataset {} already exists with format {}, ignoring configured format {}",
+               config.uri, descriptor.getFormat().getName(), config.format);
+    }
+    if (config.compression != null &&
+      CompressionType.forName(config.compression.toLowerCase()) != descriptor.getCompressionType()) {
+      LOG.warn("Dataset {} already exists with compression {}, ignoring configured compression {}",
+               config.uri, descriptor.getCompressionType().getName(), config.compression);
+    }
+
+    // Writer settings apply to existing datasets as well.
+    DatasetDescriptor.Builder updated = null;
+    for (Map.Entry<String, String> property : properties.entrySet()) {
+      if (!property.getValue().equals(descriptor.getProperty(property.getKey()))) {
+        updated = updated == null ? new DatasetDescriptor.Builder(descriptor) : updated;
+        updated.property(property.getKey(), property.getValue());
+      }
+    }
+    return updated == null ? existing : Datasets.update(config.uri, updated.build(), GenericRecord.class);
+  }
+
+  /**
+   * Converts the record with the converter compiled for its schema, projected to the dataset schema if
+   * needed. Converters are looked up by schema hash and only when the schema differs from the one of
+   * the previous record. Schemas are resolved against the dataset schema once, and again only when the
+   * dataset schema changes.
+   */
+  private GenericRecord transform(StructuredRecord structuredRecord) {
+    Schema schema = structuredRecord.getSchema();
+    if (schema != lastSchema) {
+      SchemaHash hash = schema.getSchemaHash();
+      entry = entries.get(hash);
+      if (entry == null) {
+        entry = new SchemaEntry(new GenericRecordConverter(schema));
+        entries.put(hash, entry);
+      }
+      lastSchema = schema;
+    }
+    if (entry.resolvedFor == null || entry.resolvedFor != datasetSchema) {
+      resolve(entry);
     }
-    return recordBuilder.build();
+    GenericRecord converted = entry.converter.convert(structuredRecord);
+    return entry.projection == null ? converted : entry.projection.project(converted);
   }
 
-  private Object convertUnion(Object value, List<Schema> schemas) {
-    boolean isNullable = false;
-    for (org.apache.avro.Schema possibleSchema : schemas) {
-      if (possibleSchema.getType() == org.apache.avro.Schema.Type.NULL) {
-        isNullable = true;
-        if (value == null) {
-          return value;
+  /**
+   * Resolves a record schema against the dataset schema, opening the dataset with the first one. A
+   * schema new to the dataset replaces the dataset schema if it keeps all of its fields, adds some, and
+   * can read the records written so far. Otherwise records are projected to the dataset schema if it can
+   * read them, so that a stage dropping a field does not drop it from the dataset.
+   *
+   * @throws IllegalArgumentException if the schema and the dataset schema are incompatible
+   */
+  private void resolve(SchemaEntry entry) {
+    org.apache.avro.Schema schema = entry.converter.getAvroSchema();
+    ClassLoader cl = Thread.currentThread().getContextClassLoader();
+    try {
+      Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+      // This could be in initialize if there is a way to get input and output schema
+      if (dataset == null) {
+        setDataset(loadOrCreate(schema));
+      }
+      long fingerprint = SchemaNormalization.parsingFingerprint64(schema);
+      long datasetFingerprint = SchemaNormalization.parsingFingerprint64(datasetSchema);
+      if (fingerprint != datasetFingerprint && !previousSchemas.contains(fingerprint) &&
+        addsFields(schema, datasetSchema)) {
+        org.apache.avro.Schema evolved = withNullDefaults(schema, datasetSchema);
+        if (SchemaValidationUtil.canRead(datasetSchema, evolved)) {
+          LOG.info("Updating schema of dataset {} from {} to {}", config.uri, datasetSchema, evolved);
+          DatasetDescriptor descriptor = new DatasetDescriptor.Builder(dataset.getDescriptor()).schema(evolved).build();
+          previousSchemas.add(datasetFingerprint);
+          previousSchemas.add(fingerprint);
+          setDataset(Datasets.update(config.uri, descriptor, GenericRecord.class));
+          datasetFingerprint = SchemaNormalization.parsingFingerprint64(datasetSchema);
+          context.getMetrics().count("kite.schema.updated", 1);
         }
-      } else {
-        try {
-          return convertField(value, possibleSchema);
-        } catch (Exception e) {
-          // if we couldn't convert, move to the next possibility
+      }
+
+      entry.projection = null;
+      if (fingerprint != datasetFingerprint) {
+        if (!SchemaValidationUtil.canRead(schema, datasetSchema)) {
+          throw new IllegalArgumentException("Records with schema " + schema + " cannot be written to dataset " +
+                                               config.uri + " with schema " + datasetSchema);
         }
+        entry.projection = new RecordProjection(schema, datasetSchema);
       }
+      entry.resolvedFor = datasetSchema;
+    } finally {
+      Thread.currentThread().setContextClassLoader(cl);
     }
-    if (isNullable) {
-      return null;
+  }
+
+  /**
+   * Returns whether the schema has every field of the dataset schema, and at least one more.
+   */
+  private static boolean addsFields(org.apache.avro.Schema schema, org.apache.avro.Schema datasetSchema) {
+    for (org.apache.avro.Schema.Field field : datasetSchema.getFields()) {
+      if (schema.getField(field.name()) == null) {
+        return false;
+      }
     }
-    throw new UnexpectedFormatException("unable to determine union type.");
+    return schema.getFields().size() > datasetSchema.getFields().size();
   }
 
-  private List<Object> convertArray(Object values, org.apache.avro.Schema elementSchema) throws IOException {
-    List<Object> output;
-    if (values instanceof List) {
-      List<Object> valuesList = (List<Object>) values;
-      output = new ArrayList<Object>(valuesList.size());
-      for (Object value : valuesList) {
-        output.add(convertField(value, elementSchema));
+  /**
+   * Returns the schema with a null default for nullable fields that the dataset schema does not have,
+   * so that the schema can read records written before those fields were added. A null default has to
+   * match the first branch of the union, and branches are not reordered, so that converted records are
+   * written as they are rather than projected. Fields whose null branch is not the first get no default.
+   */
+  private static org.apache.avro.Schema withNullDefaults(org.apache.avro.Schema schema,
+                                                         org.apache.avro.Schema datasetSchema) {
+    List<org.apache.avro.Schema.Field> fields = new ArrayList<org.apache.avro.Schema.Field>();
+    boolean changed = false;
+    for (org.apache.avro.Schema.Field field : schema.getFields()) {
+      JsonNode defaultValue = field.defaultValue();
+      if (datasetSchema.getField(field.name()) == null && defaultValue == null &&
+        field.schema().getType() == org.apache.avro.Schema.Type.UNION &&
+        field.schema().getTypes().get(0).getType() == org.apache.avro.Schema.Type.NULL) {
+        defaultValue = NullNode.getInstance();
+        changed = true;
       }
-    } else {
-      Object[] valuesArr = (Object[]) values;
-      output = new ArrayList<Object>(valuesArr.length);
-      for (Object value : valuesArr) {
-        output.add(convertField(value, elementSchema));
+      org.apache.avro.Schema.Field copy =
+        new org.apache.avro.Schema.Field(field.name(), field.schema(), field.doc(), defaultValue, field.order());
+      for (Map.Entry<String, JsonNode> prop : field.getJsonProps().entrySet()) {
+        copy.addProp(prop.getKey(), prop.getValue());
       }
+      fields.add(copy);
+    }
+    if (!changed) {
+      return schema;
+    }
+    org.apache.avro.Schema evolved = org.apache.avro.Schema.createRecord(schema.getName(), schema.getDoc(),
+                                                                         schema.getNamespace(), schema.isError());
+    evolved.setFields(fields);
+    return evolved;
+  }
+
+  private void setDataset(Dataset<GenericRecord> dataset) {
+    this.dataset = dataset;
+    this.datasetSchema = dataset.getDescriptor().getSchema();
+    datasetVersions.put(SchemaNormalization.parsingFingerprint64(datasetSchema), dataset);
+    if (compactor == null && config.compactTargetBytes != null) {
+      startCompactor(dataset.getDescriptor());
     }
-    return output;
   }
 
-  private Map<String, Object> convertMap(Map<String, Object> map, org.apache.avro.Schema valueSchema) throws IOException {
-    Map<String, Object> converted = Maps.newHashMap();
-    for (Map.Entry<String, Object> entry : map.entrySet()) {
-      converted.put(entry.getKey(), convertField(entry.getValue(), valueSchema));
+  /**
+   * Starts merging small files of the dataset. Compaction is skipped with a warning where unsupported,
+   * as the sink writes correctly without it. Only the first instance of the sink compacts, as compactors
+   * of the same dataset would merge the same files.
+   */
+  private void startCompactor(DatasetDescriptor descriptor) {
+    if (context.getInstanceId() != 0) {
+      return;
+    }
+    if (!Formats.AVRO.equals(descriptor.getFormat()) || descriptor.getLocation() == null) {
+      LOG.warn("Compaction is only supported for Avro datasets on a file system, not compacting {}", config.uri);
+      return;
+    }
+    try {
+      FileSystem fs = FileSystem.get(descriptor.getLocation(), new Configuration());
+      compactor = new DatasetCompactor(fs, new Path(descriptor.getLocation()), config.compactTargetBytes,
+                                       config.compactBytesPerSecond);
+      compactor.start(config.compactIntervalMs == null ? DEFAULT_COMPACT_INTERVAL_MS : config.compactIntervalMs);
+    } catch (IOException e) {
+      LOG.warn("Failed to access {}, not compacting {}", descriptor.getLocation(), config.uri, e);
     }
-    return converted;
   }
 
-  private Object convertField(Object field, org.apache.avro.Schema fieldSchema) throws IOException {
-    org.apache.avro.Schema.Type fieldType = fieldSchema.getType();
-    switch (fieldType) {
-      case RECORD:
-        return transform((StructuredRecord) field);
-      case ARRAY:
-        return convertArray(field, fieldSchema.getElementType());
-      case MAP:
-        return convertMap((Map<String, Object>) field, fieldSchema.getValueType());
-      case UNION:
-        return convertUnion(field, fieldSchema.getTypes());
-      case NULL:
-        return null;
-      case STRING:
-        return field.toString();
-      case BYTES:
-      case INT:
-      case LONG:
-      case FLOAT:
-      case DOUBLE:
-      case BOOLEAN:
-        return field;
-      default:
-        throw new UnexpectedFormatException("field type " + fieldType + " is not supported.");
+  /**
+   * Converter of a record schema, and how its records are written to the dataset schema it was last
+   * resolved against.
+   */
+  private static final class SchemaEntry {
+    private final GenericRecordConverter converter;
+    private org.apache.avro.Schema resolvedFor;
+    // Projection to the dataset schema, or null if converted records are written as they are.
+    private RecordProjection projection;
+
+    SchemaEntry(GenericRecordConverter converter) {
+      this.converter = converter;
     }
   }
 
@@ -193,8 +796,165 @@ public class KiteDatasetWriter extends RealtimeSink<StructuredRecord> {
     @Description("Specifies Kite Dataset URI")
     private String uri;
 
+    @Name("partitionstrategy")
+    @Description("Partition strategy used when the sink creates the dataset. Either a Kite partition strategy " +
+      "JSON or a comma separated list of partitioners such as 'year(ts),month(ts),day(ts),hour(ts),hash(id,16)'. " +
+      "Supported partitioners are year, month, day, hour and minute of a field holding milliseconds since the " +
+      "epoch, hash of a field into a number of buckets and identity. Default is no partitioning")
+    @Nullable
+    private String partitionStrategy;
+
+    @Name("maxopenwriters")
+    @Description("Maximum number of partition files kept open at once. When a record goes to another " +
+      "partition, the least recently used file is closed. Default is Kite's writer cache size")
+    @Nullable
+    private Integer maxOpenWriters;
+
+    @Name("async")
+    @Description("Specifies whether records are written to the dataset by a background thread, so that " +
+      "conversion and file system writes overlap and short file system stalls do not block the pipeline. " +
+      "Records still in the buffer when the sink fails are lost. Default is FALSE")
+    @Nullable
+    private String async;
+
+    @Name("asyncbuffersize")
+    @Description("Number of records the sink buffers for the background thread before it waits for the " +
+      "thread to catch up. Default is 8192")
+    @Nullable
+    private Integer asyncBufferSize;
+
+    @Name("rollrecords")
+    @Description("Number of records after which the sink closes its files and starts new ones. Records " +
+      "are visible to readers once their file is closed. Default is no limit")
+    @Nullable
+    private Long rollRecords;
+
+    @Name("rollbytes")
+    @Description("Estimated number of bytes, before compression, after which the sink closes its files and " +
+      "starts new ones. Default is no limit")
+    @Nullable
+    private Long rollBytes;
+
+    @Name("rollintervalms")
+    @Description("Time in milliseconds after which the sink closes its files and starts new ones. Checked " +
+      "whenever records are written. Default is no limit")
+    @Nullable
+    private Long rollIntervalMs;
+
+    @Name("flushintervalms")
+    @Description("Time in milliseconds between flushes of the open files, for file formats that support " +
+      "it. Flushed records survive a failure of the sink. Default is no periodic flush")
+    @Nullable
+    private Long flushIntervalMs;
+
+    @Name("shards")
+    @Description("Number of writers writing to the dataset in parallel, each with its own files and thread. " +
+      "More than one implies async. Default is 1")
+    @Nullable
+    private Integer shards;
+
+    @Name("shardfield")
+    @Description("Field whose hash picks the writer of a record, so that records with the same value go to " +
+      "the same files. Records are spread round-robin if not set or null")
+    @Nullable
+    private String shardField;
+
+    @Name("format")
+    @Description("File format used when the sink creates the dataset, AVRO or PARQUET. Parquet files are " +
+      "columnar and cheaper to scan, but only written out, and visible to readers, when closed. Default is AVRO")
+    @Nullable
+    private String format;
+
+    @Name("compression")
+    @Description("Compression codec used when the sink creates the dataset: SNAPPY, DEFLATE, BZIP2 or " +
+      "UNCOMPRESSED. BZIP2 is only supported for AVRO. Default is SNAPPY")
+    @Nullable
+    private String compression;
+
+    @Name("rowgroupbytes")
+    @Description("Size in bytes of Parquet row groups. Each open Parquet file buffers up to a row group in " +
+      "memory. Default is 128MB")
+    @Nullable
+    private Long rowGroupBytes;
+
+    @Name("pagebytes")
+    @Description("Size in bytes of Parquet pages, the unit of compression and encoding within a column. " +
+      "Default is 1MB")
+    @Nullable
+    private Long pageBytes;
+
+    @Name("maxparquetmemory")
+    @Description("Maximum number of bytes the Parquet writers may buffer, checked against the row group size " +
+      "times the number of files the sink can keep open. Default is 1GB")
+    @Nullable
+    private Long maxParquetMemory;
+
+    @Name("compacttargetbytes")
+    @Description("Enables merging the small files of each partition into files of up to this size in bytes, " +
+      "in the background, by the first instance of the sink. Only Avro datasets are compacted. Default is no " +
+      "compaction")
+    @Nullable
+    private Long compactTargetBytes;
+
+    @Name("compactintervalms")
+    @Description("Time in milliseconds between compactions of the dataset. Default is 5 minutes")
+    @Nullable
+    private Long compactIntervalMs;
+
+    @Name("compactbytespersecond")
+    @Description("Maximum number of bytes per second compaction reads, to limit its impact on the file " +
+      "system. Default is no limit")
+    @Nullable
+    private Long compactBytesPerSecond;
+
     public Config(String uri) {
       this.uri = uri;
     }
+
+    Config setPartitioning(String partitionStrategy, Integer maxOpenWriters) {
+      this.partitionStrategy = partitionStrategy;
+      this.maxOpenWriters = maxOpenWriters;
+      return this;
+    }
+
+    Config setRolling(Long rollRecords, Long rollBytes, Long rollIntervalMs, Long flushIntervalMs) {
+      this.rollRecords = rollRecords;
+      this.rollBytes = rollBytes;
+      this.rollIntervalMs = rollIntervalMs;
+      this.flushIntervalMs = flushIntervalMs;
+      return this;
+    }
+
+    Config setAsync(String async, Integer asyncBufferSize) {
+      this.async = async;
+      this.asyncBufferSize = asyncBufferSize;
+      return this;
+    }
+
+    Config setFormat(String format, String compression) {
+      this.format = format;
+      this.compression = compression;
+      return this;
+    }
+
+    Config setParquet(Long rowGroupBytes, Long pageBytes, Long maxParquetMemory) {
+      this.rowGroupBytes = rowGroupBytes;
+      this.pageBytes = pageBytes;
+      this.maxParquetMemory = maxParquetMemory;
+      return this;
+    }
+
+    Config setCompaction(Long compactTargetBytes, Long compactIntervalMs, Long compactBytesPerSecond) {
+      this.compactTargetBytes = compactTargetBytes;
+      this.compactIntervalMs = compactIntervalMs;
+      this.compactBytesPerSecond = compactBytesPerSecond;
+      return this;
+    }
+
+    Config setSharding(Integer shards, String shardField) {
+      this.shards = shards;
+      this.shardField = shardField;
+      return this;
+    }
   }
 }
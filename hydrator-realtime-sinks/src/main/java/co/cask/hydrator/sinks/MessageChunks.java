@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.collect.Lists;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Format of the chunks the {@link KafkaProducer} sink splits oversized messages into, and the
+ * {@link Assembler} consumers use to put them back together.
+ *
+ * <p>Every chunk value starts with a header: the magic bytes {@code 0x00 'C' 'H' 'K'}, the id shared by
+ * all chunks of a message as a long, the index of the chunk and the number of chunks as ints, all big
+ * endian. The rest of the value is the chunk's slice of the original value. All chunks of a message are
+ * sent to the same partition with the same key.</p>
+ */
+public final class MessageChunks {
+  public static final int HEADER_BYTES = 20;
+  private static final int MAGIC = 0x0043484B;
+
+  private MessageChunks() {
+  }
+
+  /**
+   * Splits a value into chunks of at most {@code maxBytes}, header included.
+   */
+  static List<byte[]> split(byte[] value, int maxBytes, long messageId) {
+    int chunkData = maxBytes - HEADER_BYTES;
+    int count = (value.length + chunkData - 1) / chunkData;
+    List<byte[]> chunks = Lists.newArrayListWithCapacity(count);
+    for (int index = 0; index < count; index++) {
+      int offset = index * chunkData;
+      int length = Math.min(chunkData, value.length - offset);
+      ByteBuffer chunk = ByteBuffer.allocate(HEADER_BYTES + length);
+      chunk.putInt(MAGIC).putLong(messageId).putInt(index).putInt(count).put(value, offset, length);
+      chunks.add(chunk.array());
+    }
+    return chunks;
+  }
+
+  /**
+   * Returns whether a message value is a chunk of a larger value.
+   */
+  public static boolean isChunk(byte[] value) {
+    return value.length >= HEADER_BYTES && ByteBuffer.wrap(value).getInt() == MAGIC;
+  }
+
+  /**
+   * Reassembles chunked values on the consumer side. Values that are not chunks are passed through.
+   *
+   * <p>Chunks of a message are kept until all of them have been added, in any order. At most the given
+   * number of incomplete messages are kept; beyond that the least recently added one is dropped. Use one
+   * assembler per partition. Instances are not thread safe.</p>
+   */
+  public static final class Assembler {
+    private final Map<Long, byte[][]> incomplete;
+
+    public Assembler(final int maxIncomplete) {
+      this.incomplete = new LinkedHashMap<Long, byte[][]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[][]> eldest) {
+          return size() > maxIncomplete;
+        }
+      };
+    }
+
+    /**
+     * Adds a message value.
+     *
+     * @return the complete value, or null if the value is a chunk of a message that is still incomplete.
+     * @throws IllegalArgumentException if the chunk's index is out of range, or its number of chunks differs
+     *                                  from the one of the chunks of the same message added before.
+     */
+    @Nullable
+    public byte[] add(byte[] value) {
+      if (!isChunk(value)) {
+        return value;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(value);
+      buffer.getInt();
+      long messageId = buffer.getLong();
+      int index = buffer.getInt();
+      int count = buffer.getInt();
+      if (count < 1 || index < 0 || index >= count) {
+        throw new IllegalArgumentException("Invalid chunk " + index + " of " + count + " of message " + messageId);
+      }
+
+      byte[][] chunks = incomplete.get(messageId);
+      if (chunks == null) {
+        chunks = new byte[count][];
+        incomplete.put(messageId, chunks);
+      } else if (chunks.length != count) {
+        throw new IllegalArgumentException("Chunk " + index + " of message " + messageId + " has " + count +
+                                             " chunks, earlier chunks had " + chunks.length);
+      }
+      chunks[index] = value;
+
+      int length = 0;
+      for (byte[] chunk : chunks) {
+        if (chunk == null) {
+          return null;
+        }
+        length += chunk.length - HEADER_BYTES;
+      }
+      incomplete.remove(messageId);
+      byte[] assembled = new byte[length];
+      int offset = 0;
+      for (byte[] chunk : chunks) {
+        System.arraycopy(chunk, HEADER_BYTES, assembled, offset, chunk.length - HEADER_BYTES);
+        offset += chunk.length - HEADER_BYTES;
+      }
+      return assembled;
+    }
+
+    /**
+     * Returns the number of messages waiting for more chunks.
+     */
+    public int getIncomplete() {
+      return incomplete.size();
+    }
+  }
+}
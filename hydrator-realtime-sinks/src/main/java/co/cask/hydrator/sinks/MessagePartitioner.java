@@ -0,0 +1,317 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.base.Charsets;
+import org.apache.kafka.common.utils.Utils;
+
+import java.util.Arrays;
+
+/**
+ * Strategy the {@link KafkaProducer} sink uses to pick the partition of a message.
+ *
+ * <p>Keys are passed as primitives or raw bytes so that no boxing happens on the write path. Every
+ * method must return a partition in {@code [0, numPartitions)}. Instances are used by a single
+ * thread. Custom strategies extend this class, have a public no-argument constructor and are
+ * configured by class name.</p>
+ */
+public abstract class MessagePartitioner {
+
+  /**
+   * Returns the partition for an int key.
+   */
+  public abstract int partition(int key, int numPartitions);
+
+  /**
+   * Returns the partition for a long key.
+   */
+  public int partition(long key, int numPartitions) {
+    return partition((int) (key ^ (key >>> 32)), numPartitions);
+  }
+
+  /**
+   * Returns the partition for a key given as bytes, such as the UTF-8 bytes of a string.
+   */
+  public int partition(byte[] key, int numPartitions) {
+    return partition(Utils.murmur2(key), numPartitions);
+  }
+
+  /**
+   * Returns the partition for a string key, by default the partition of its UTF-8 bytes.
+   */
+  public int partition(String key, int numPartitions) {
+    return partition(key.getBytes(Charsets.UTF_8), numPartitions);
+  }
+
+  /**
+   * Returns the partition for a message without a key.
+   */
+  public int partition(int numPartitions) {
+    return 0;
+  }
+
+  /**
+   * Called at the start of every batch of records.
+   */
+  public void onNewBatch() {
+    // no-op
+  }
+
+  /**
+   * Returns the partitioner with the given name: one of {@code modulo}, {@code murmur2}, {@code consistent},
+   * {@code roundrobin} or {@code sticky}, or the class name of a custom partitioner.
+   */
+  public static MessagePartitioner create(String name) {
+    switch (name.toLowerCase()) {
+      case "modulo":
+        return new Modulo();
+      case "murmur2":
+        return new Murmur2();
+      case "consistent":
+        return new ConsistentHash();
+      case "roundrobin":
+        return new RoundRobin();
+      case "sticky":
+        return new Sticky();
+      default:
+        try {
+          Class<?> cls = Class.forName(name, true, MessagePartitioner.class.getClassLoader());
+          return cls.asSubclass(MessagePartitioner.class).newInstance();
+        } catch (Exception e) {
+          throw new IllegalArgumentException("Partitioner '" + name + "' is not supported. Allowed values are " +
+                                               "MODULO, MURMUR2, CONSISTENT, ROUNDROBIN, STICKY or the class " +
+                                               "name of a MessagePartitioner", e);
+        }
+    }
+  }
+
+  /**
+   * Maps an int key to its non-negative remainder. String keys are mapped by their {@code hashCode()},
+   * as the sink always placed them, so that existing keys keep their partition. Messages without key go
+   * to partition 0.
+   */
+  static final class Modulo extends MessagePartitioner {
+    @Override
+    public int partition(int key, int numPartitions) {
+      int partition = key % numPartitions;
+      return partition < 0 ? partition + numPartitions : partition;
+    }
+
+    @Override
+    public int partition(long key, int numPartitions) {
+      int partition = (int) (key % numPartitions);
+      return partition < 0 ? partition + numPartitions : partition;
+    }
+
+    @Override
+    public int partition(String key, int numPartitions) {
+      return partition(key.hashCode(), numPartitions);
+    }
+  }
+
+  /**
+   * Hashes keys with murmur2 the way Kafka's default partitioner does. Int and long keys are hashed as
+   * their big endian bytes, as serialized by Kafka's integer and long serializers, without allocating them.
+   * Messages without key are spread round-robin.
+   */
+  static final class Murmur2 extends MessagePartitioner {
+    private static final int SEED = 0x9747b28c;
+    private static final int M = 0x5bd1e995;
+    private static final int R = 24;
+
+    private int counter = 0;
+
+    @Override
+    public int partition(int key, int numPartitions) {
+      int h = SEED ^ 4;
+      h = mixWord(h, Integer.reverseBytes(key));
+      return Utils.abs(finish(h)) % numPartitions;
+    }
+
+    @Override
+    public int partition(long key, int numPartitions) {
+      int h = SEED ^ 8;
+      h = mixWord(h, Integer.reverseBytes((int) (key >>> 32)));
+      h = mixWord(h, Integer.reverseBytes((int) key));
+      return Utils.abs(finish(h)) % numPartitions;
+    }
+
+    @Override
+    public int partition(byte[] key, int numPartitions) {
+      return Utils.abs(Utils.murmur2(key)) % numPartitions;
+    }
+
+    @Override
+    public int partition(int numPartitions) {
+      return Utils.abs(counter++) % numPartitions;
+    }
+
+    // Mixes one little endian word into the hash, as Utils.murmur2 does for every 4 bytes of input.
+    private static int mixWord(int h, int k) {
+      k *= M;
+      k ^= k >>> R;
+      k *= M;
+      h *= M;
+      return h ^ k;
+    }
+
+    private static int finish(int h) {
+      h ^= h >>> 13;
+      h *= M;
+      h ^= h >>> 15;
+      return h;
+    }
+  }
+
+  /**
+   * Places every partition on a hash ring at a number of virtual nodes and maps a key to the first
+   * node at or after its hash. When partitions are added only the keys that land on the new nodes move,
+   * instead of nearly all keys as with modulo hashing. Messages without key are spread round-robin.
+   */
+  static final class ConsistentHash extends MessagePartitioner {
+    static final int VIRTUAL_NODES = 128;
+
+    // Sorted positions of the virtual nodes and the partition owning each of them.
+    private int[] ring = new int[0];
+    private int[] owners = new int[0];
+    private int ringPartitions = 0;
+    private int counter = 0;
+
+    @Override
+    public int partition(int key, int numPartitions) {
+      return lookup(mix(key), numPartitions);
+    }
+
+    @Override
+    public int partition(long key, int numPartitions) {
+      return lookup(mix((int) (key ^ (key >>> 32))), numPartitions);
+    }
+
+    @Override
+    public int partition(byte[] key, int numPartitions) {
+      return lookup(mix(Utils.murmur2(key)), numPartitions);
+    }
+
+    @Override
+    public int partition(int numPartitions) {
+      return Utils.abs(counter++) % numPartitions;
+    }
+
+    private int lookup(int hash, int numPartitions) {
+      if (numPartitions != ringPartitions) {
+        build(numPartitions);
+      }
+      int index = Arrays.binarySearch(ring, hash);
+      if (index < 0) {
+        index = -index - 1;
+        if (index == ring.length) {
+          index = 0;
+        }
+      }
+      return owners[index];
+    }
+
+    private void build(int numPartitions) {
+      long[] nodes = new long[numPartitions * VIRTUAL_NODES];
+      for (int partition = 0; partition < numPartitions; partition++) {
+        for (int node = 0; node < VIRTUAL_NODES; node++) {
+          int position = mix(partition * 0x9E3779B9 + mix(node));
+          // Position in the high bits, owner in the low bits, so that sorting keeps them together.
+          nodes[partition * VIRTUAL_NODES + node] = ((long) position << 32) | partition;
+        }
+      }
+      Arrays.sort(nodes);
+      ring = new int[nodes.length];
+      owners = new int[nodes.length];
+      for (int i = 0; i < nodes.length; i++) {
+        ring[i] = (int) (nodes[i] >> 32);
+        owners[i] = (int) nodes[i];
+      }
+      ringPartitions = numPartitions;
+    }
+
+    // Murmur3 finalizer, spreads all input bits over the whole int.
+    private static int mix(int h) {
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+      return h;
+    }
+  }
+
+  /**
+   * Ignores keys and spreads messages evenly over all partitions.
+   */
+  static final class RoundRobin extends MessagePartitioner {
+    private int counter = 0;
+
+    @Override
+    public int partition(int key, int numPartitions) {
+      return partition(numPartitions);
+    }
+
+    @Override
+    public int partition(long key, int numPartitions) {
+      return partition(numPartitions);
+    }
+
+    @Override
+    public int partition(byte[] key, int numPartitions) {
+      return partition(numPartitions);
+    }
+
+    @Override
+    public int partition(int numPartitions) {
+      return Utils.abs(counter++) % numPartitions;
+    }
+  }
+
+  /**
+   * Ignores keys and sends a whole batch of records to one partition, moving to the next partition with
+   * every batch. The producer then fills one large request per batch instead of many small ones.
+   */
+  static final class Sticky extends MessagePartitioner {
+    private int current = 0;
+
+    @Override
+    public int partition(int key, int numPartitions) {
+      return partition(numPartitions);
+    }
+
+    @Override
+    public int partition(long key, int numPartitions) {
+      return partition(numPartitions);
+    }
+
+    @Override
+    public int partition(byte[] key, int numPartitions) {
+      return partition(numPartitions);
+    }
+
+    @Override
+    public int partition(int numPartitions) {
+      return current % numPartitions;
+    }
+
+    @Override
+    public void onNewBatch() {
+      current = Utils.abs(current + 1);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A secondary Kafka cluster the {@link KafkaProducer} sink mirrors its messages to.
+ *
+ * <p>Messages already serialized for the primary cluster are sent as they are, to the same partition
+ * if the topic has enough partitions on this cluster. Tracks the messages not yet acknowledged by
+ * the cluster, how long acknowledgments take and how many sends failed, so that the sink can report
+ * how far the cluster lags behind.</p>
+ */
+final class MirrorCluster {
+  private final String name;
+  private final Producer<String, byte[]> producer;
+  private final PartitionCountCache partitionCounts;
+
+  private final ValueHistogram latencyMicros = new ValueHistogram();
+  private final AtomicLong inFlight = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  MirrorCluster(String name, Producer<String, byte[]> producer, long metadataRefreshMs, Executor refresher) {
+    this.name = name;
+    this.producer = producer;
+    this.partitionCounts = new PartitionCountCache(producer, metadataRefreshMs, refresher);
+  }
+
+  /**
+   * Sends a copy of a message to this cluster.
+   *
+   * @throws KafkaException if the producer refused the message.
+   */
+  Future<RecordMetadata> send(ProducerRecord<String, byte[]> record) {
+    // The mirror's producer picks the partition if either cluster's partition count is unknown.
+    int partitions = partitionCounts.get(record.topic());
+    Integer partition = record.partition();
+    if (partition == null || partitions == PartitionCountCache.UNKNOWN) {
+      partition = null;
+    } else if (partition >= partitions) {
+      partition = partition % partitions;
+    }
+    ProducerRecord<String, byte[]> copy =
+      new ProducerRecord<String, byte[]>(record.topic(), partition, record.key(), record.value());
+
+    final long start = System.nanoTime();
+    inFlight.incrementAndGet();
+    try {
+      return producer.send(copy, new Callback() {
+        @Override
+        public void onCompletion(RecordMetadata meta, Exception e) {
+          inFlight.decrementAndGet();
+          if (e != null) {
+            failures.incrementAndGet();
+            partitionCounts.invalidate(e);
+          } else {
+            latencyMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+          }
+        }
+      });
+    } catch (KafkaException e) {
+      inFlight.decrementAndGet();
+      failures.incrementAndGet();
+      throw e;
+    }
+  }
+
+  String getName() {
+    return name;
+  }
+
+  Producer<String, byte[]> getProducer() {
+    return producer;
+  }
+
+  /**
+   * Returns the number of messages sent to this cluster and not acknowledged yet.
+   */
+  long getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Returns the number of failed sends since the last call and resets it.
+   */
+  long drainFailures() {
+    return failures.getAndSet(0);
+  }
+
+  /**
+   * Returns the ack latencies recorded since the last call and resets them.
+   */
+  ValueHistogram.Snapshot drainLatency() {
+    return latencyMicros.drain();
+  }
+}
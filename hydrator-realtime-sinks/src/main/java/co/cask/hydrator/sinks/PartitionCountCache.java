@@ -0,0 +1,179 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.common.errors.InvalidMetadataException;
+import org.apache.kafka.common.errors.UnknownTopicOrPartitionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caches the number of partitions of every topic a producer writes to.
+ *
+ * <p>Reads go through an immutable map published through a volatile field, so the write path
+ * never takes a lock. The cache is reloaded from the producer's metadata every refresh interval,
+ * or on the next read after a send has failed with a metadata error, so topics that gain
+ * partitions are picked up while the pipeline is running. Reloads run on the given executor and
+ * reads keep getting the cached counts meanwhile, so a slow or unavailable metadata lookup never
+ * holds back the write path. Counts that fail to reload are kept until the next refresh.</p>
+ *
+ * <p>A topic seen for the first time is looked up right away, which waits no longer than the producer's
+ * send would for the same metadata. If the lookup fails, the topic's count is {@link #UNKNOWN} until a
+ * reload in the background finds it, so that the write path is not blocked or failed again meanwhile.</p>
+ */
+final class PartitionCountCache {
+  private static final Logger LOG = LoggerFactory.getLogger(PartitionCountCache.class);
+
+  /**
+   * Count of a topic whose metadata could not be looked up yet.
+   */
+  static final int UNKNOWN = -1;
+
+  // Producer whose metadata is used to look up partitions.
+  private final Producer<?, ?> producer;
+
+  // Interval in milliseconds after which all cached counts are reloaded.
+  private final long refreshIntervalMs;
+
+  // Runs the reloads, away from the write path.
+  private final Executor refresher;
+
+  // Set while a reload is scheduled or running, so that reloads don't pile up.
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  // Current partition count per topic. Replaced as a whole, never modified.
+  private volatile Map<String, Integer> counts = ImmutableMap.of();
+
+  // Topics whose first lookup failed, looked up again by the next reload.
+  private final Set<String> unknown = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  // Set when a send fails because of stale metadata.
+  private volatile boolean stale = false;
+
+  // Time at which the cache is reloaded next.
+  private volatile long nextRefresh;
+
+  PartitionCountCache(Producer<?, ?> producer, long refreshIntervalMs, Executor refresher) {
+    this.producer = producer;
+    this.refreshIntervalMs = refreshIntervalMs;
+    this.refresher = refresher;
+    this.nextRefresh = System.currentTimeMillis() + refreshIntervalMs;
+  }
+
+  /**
+   * Returns the number of partitions of the topic, loading it if the topic has not been seen before.
+   * Schedules a reload of all counts if they are due for one.
+   *
+   * @return the number of partitions, or {@link #UNKNOWN} if the topic's metadata could not be looked up
+   */
+  int get(String topic) {
+    if ((stale || System.currentTimeMillis() >= nextRefresh) && refreshing.compareAndSet(false, true)) {
+      stale = false;
+      nextRefresh = System.currentTimeMillis() + refreshIntervalMs;
+      try {
+        refresher.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              refresh();
+            } finally {
+              refreshing.set(false);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // The sink is shutting down.
+        refreshing.set(false);
+      }
+    }
+    Integer count = counts.get(topic);
+    if (count == null) {
+      count = unknown.contains(topic) ? UNKNOWN : load(topic);
+    }
+    return count;
+  }
+
+  /**
+   * Marks the cache as stale if the given failure was caused by outdated partition metadata.
+   * Safe to call from the producer's callback thread.
+   */
+  void invalidate(Throwable failure) {
+    if (failure instanceof InvalidMetadataException || failure instanceof UnknownTopicOrPartitionException) {
+      stale = true;
+    }
+  }
+
+  /**
+   * Reloads the partition count of every cached topic, keeping the cached count of topics whose
+   * metadata cannot be looked up, and looks up the topics whose count is unknown.
+   */
+  synchronized void refresh() {
+    ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+    for (String topic : unknown) {
+      try {
+        builder.put(topic, producer.partitionsFor(topic).size());
+        unknown.remove(topic);
+      } catch (RuntimeException e) {
+        LOG.warn("Failed to look up the partition count of topic {}", topic, e);
+      }
+    }
+    for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+      int count;
+      try {
+        count = producer.partitionsFor(entry.getKey()).size();
+      } catch (RuntimeException e) {
+        LOG.warn("Failed to refresh the partition count of topic {}, keeping {}", entry.getKey(), entry.getValue(), e);
+        count = entry.getValue();
+      }
+      if (count != entry.getValue()) {
+        LOG.info("Topic {} now has {} partitions, was {}", entry.getKey(), count, entry.getValue());
+      }
+      builder.put(entry.getKey(), count);
+    }
+    counts = builder.build();
+  }
+
+  private synchronized int load(String topic) {
+    Integer count = counts.get(topic);
+    if (count != null) {
+      return count;
+    }
+    if (unknown.contains(topic)) {
+      return UNKNOWN;
+    }
+    try {
+      count = producer.partitionsFor(topic).size();
+    } catch (RuntimeException e) {
+      LOG.warn("Failed to look up the partition count of topic {}, retrying in the background", topic, e);
+      unknown.add(topic);
+      stale = true;
+      return UNKNOWN;
+    }
+    counts = ImmutableMap.<String, Integer>builder().putAll(counts).put(topic, count).build();
+    return count;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.kitesdk.data.PartitionStrategy;
+import org.kitesdk.data.PartitionStrategyParser;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the partition strategy of the {@link KiteDatasetWriter} sink.
+ *
+ * <p>The strategy is either a Kite partition strategy JSON array, or a comma separated list of
+ * partitioners such as {@code year(ts),month(ts),day(ts),hour(ts),hash(id,16),identity(type)}. Time
+ * partitioners take a field holding milliseconds since the epoch; {@code hash} takes the field and the
+ * number of buckets.</p>
+ */
+final class PartitionStrategies {
+  private static final Pattern PARTITIONER = Pattern.compile("(\\w+)\\(([^)]*)\\)");
+
+  private PartitionStrategies() {
+  }
+
+  static PartitionStrategy parse(String strategy) {
+    String trimmed = strategy.trim();
+    if (trimmed.startsWith("[")) {
+      return PartitionStrategyParser.parse(trimmed);
+    }
+
+    PartitionStrategy.Builder builder = new PartitionStrategy.Builder();
+    Matcher matcher = PARTITIONER.matcher(trimmed);
+    int end = 0;
+    while (matcher.find()) {
+      // Partitioners are separated by a single comma, the first one starts the strategy.
+      String separator = trimmed.substring(end, matcher.start()).trim();
+      if (!separator.equals(end == 0 ? "" : ",")) {
+        throw invalid(strategy);
+      }
+      end = matcher.end();
+      String type = matcher.group(1).toLowerCase();
+      List<String> args = Lists.newArrayList(Splitter.on(',').trimResults().split(matcher.group(2)));
+      String source = args.get(0);
+      if (source.isEmpty() || args.size() > (type.equals("hash") ? 2 : 1)) {
+        throw invalid(strategy);
+      }
+      if (type.equals("year")) {
+        builder.year(source);
+      } else if (type.equals("month")) {
+        builder.month(source);
+      } else if (type.equals("day")) {
+        builder.day(source);
+      } else if (type.equals("hour")) {
+        builder.hour(source);
+      } else if (type.equals("minute")) {
+        builder.minute(source);
+      } else if (type.equals("identity")) {
+        builder.identity(source);
+      } else if (type.equals("hash")) {
+        if (args.size() != 2) {
+          throw invalid(strategy);
+        }
+        try {
+          builder.hash(source, Integer.parseInt(Iterables.getLast(args)));
+        } catch (NumberFormatException e) {
+          throw invalid(strategy);
+        }
+      } else {
+        throw new IllegalArgumentException("Partitioner '" + type + "' is not supported. Allowed values are " +
+                                             "year, month, day, hour, minute, hash & identity");
+      }
+    }
+    if (end == 0 || !trimmed.substring(end).trim().isEmpty()) {
+      throw invalid(strategy);
+    }
+    return builder.build();
+  }
+
+  private static IllegalArgumentException invalid(String strategy) {
+    return new IllegalArgumentException("Partition strategy should be a Kite partition strategy JSON or a " +
+                                          "list like 'year(ts),month(ts),hash(id,16)', found '" + strategy + "'");
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Maps;
+import org.apache.kafka.clients.producer.Producer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Reference-counted pool of Kafka producers shared by {@link KafkaProducer} sink instances.
+ *
+ * <p>Sinks with the same producer properties, including the broker list, borrow the same producer, so
+ * they share its I/O thread, buffer memory and broker connections. The producer is closed when the last
+ * sink returns it. The shared pool is a static of the plugin's class loader, and CDAP gives every
+ * pipeline its own, so producers are only shared between the sink instances of one pipeline that run
+ * in the same JVM.</p>
+ */
+final class ProducerPool {
+  private static final Logger LOG = LoggerFactory.getLogger(ProducerPool.class);
+
+  private static final ProducerPool SHARED = new ProducerPool(
+    new Function<Map<String, String>, Producer<String, byte[]>>() {
+      @Override
+      public Producer<String, byte[]> apply(Map<String, String> properties) {
+        Properties props = new Properties();
+        props.putAll(properties);
+        return new org.apache.kafka.clients.producer.KafkaProducer<String, byte[]>(props);
+      }
+    });
+
+  private final Function<Map<String, String>, Producer<String, byte[]>> factory;
+
+  // Pooled producers by their properties, and the same entries by producer.
+  private final Map<Map<String, String>, Entry> byProperties = Maps.newHashMap();
+  private final Map<Producer<String, byte[]>, Entry> byProducer =
+    new IdentityHashMap<Producer<String, byte[]>, Entry>();
+
+  ProducerPool(Function<Map<String, String>, Producer<String, byte[]>> factory) {
+    this.factory = factory;
+  }
+
+  /**
+   * Returns the pool shared by the sinks loaded by this plugin class loader.
+   */
+  static ProducerPool shared() {
+    return SHARED;
+  }
+
+  /**
+   * Borrows the producer for the given properties, creating it if no sink is using one.
+   */
+  synchronized Producer<String, byte[]> borrow(Properties props) {
+    Map<String, String> properties = Maps.fromProperties(props);
+    Entry entry = byProperties.get(properties);
+    if (entry == null) {
+      entry = new Entry(properties, factory.apply(properties));
+      byProperties.put(properties, entry);
+      byProducer.put(entry.producer, entry);
+      LOG.debug("Created shared producer for {}", properties);
+    }
+    entry.references++;
+    return entry.producer;
+  }
+
+  /**
+   * Returns a borrowed producer, closing it if no other sink is using it.
+   */
+  synchronized void release(Producer<String, byte[]> producer) {
+    Entry entry = byProducer.get(producer);
+    if (entry == null) {
+      throw new IllegalArgumentException("Producer was not borrowed from this pool");
+    }
+    if (--entry.references == 0) {
+      byProperties.remove(entry.properties);
+      byProducer.remove(producer);
+      producer.close();
+      LOG.debug("Closed shared producer for {}", entry.properties);
+    }
+  }
+
+  /**
+   * Returns the number of producers in the pool.
+   */
+  synchronized int size() {
+    return byProperties.size();
+  }
+
+  /**
+   * A pooled producer and the number of sinks using it.
+   */
+  private static final class Entry {
+    private final Map<String, String> properties;
+    private final Producer<String, byte[]> producer;
+    private int references;
+
+    private Entry(Map<String, String> properties, Producer<String, byte[]> producer) {
+      this.properties = properties;
+      this.producer = producer;
+    }
+  }
+}
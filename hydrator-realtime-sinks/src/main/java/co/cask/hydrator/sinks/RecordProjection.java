@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+
+import java.util.List;
+
+/**
+ * Copies Avro records of one schema into records of another schema that can read them, such as the
+ * current schema of a dataset after columns were added.
+ *
+ * <p>Fields are matched by name once, when the projection is created. Target fields missing from the
+ * source get their default value, source fields missing from the target are dropped, numbers are
+ * promoted and nested records are projected in turn.</p>
+ */
+final class RecordProjection {
+  private final Schema target;
+  // Per target field, the position of the source field, or -1 to use the default value.
+  private final int[] sources;
+  private final Object[] defaults;
+  // Per target field, how to promote or project the value, or null to copy it.
+  private final Object[] conversions;
+
+  RecordProjection(Schema source, Schema target) {
+    this.target = target;
+    List<Schema.Field> fields = target.getFields();
+    this.sources = new int[fields.size()];
+    this.defaults = new Object[fields.size()];
+    this.conversions = new Object[fields.size()];
+    for (Schema.Field field : fields) {
+      int pos = field.pos();
+      Schema.Field sourceField = source.getField(field.name());
+      if (sourceField == null) {
+        if (field.defaultValue() == null) {
+          throw new IllegalArgumentException("Field '" + field.name() + "' of schema " + target.getName() +
+                                               " has no default value and is missing from " + source.getName());
+        }
+        sources[pos] = -1;
+        defaults[pos] = GenericData.get().getDefaultValue(field);
+      } else {
+        sources[pos] = sourceField.pos();
+        conversions[pos] = conversionOf(sourceField.schema(), field.schema());
+      }
+    }
+  }
+
+  Schema getTarget() {
+    return target;
+  }
+
+  GenericRecord project(GenericRecord record) {
+    GenericData.Record projected = new GenericData.Record(target);
+    for (int i = 0; i < sources.length; i++) {
+      if (sources[i] < 0) {
+        // Defaults are shared between records, copy mutable ones.
+        projected.put(i, GenericData.get().deepCopy(target.getFields().get(i).schema(), defaults[i]));
+      } else {
+        projected.put(i, convert(conversions[i], record.get(sources[i])));
+      }
+    }
+    return projected;
+  }
+
+  private static Object convert(Object conversion, Object value) {
+    if (conversion == null || value == null) {
+      return value;
+    }
+    if (conversion instanceof RecordProjection) {
+      return value instanceof GenericRecord ? ((RecordProjection) conversion).project((GenericRecord) value) : value;
+    }
+    if (!(value instanceof Number)) {
+      return value;
+    }
+    Number number = (Number) value;
+    switch ((Schema.Type) conversion) {
+      case LONG:
+        return number.longValue();
+      case FLOAT:
+        return number.floatValue();
+      case DOUBLE:
+        return number.doubleValue();
+      default:
+        return value;
+    }
+  }
+
+  /**
+   * Returns how values of the source schema become values of the target schema: null to copy them, a
+   * projection for records of different schemas, or the type numbers are promoted to.
+   */
+  private static Object conversionOf(Schema source, Schema target) {
+    if (source.equals(target)) {
+      return null;
+    }
+    Schema.Type type = target.getType();
+    if (type == Schema.Type.UNION) {
+      // Nullable fields, the only unions that differ in practice, take the non-null branch.
+      Schema branch = nonNullBranch(target);
+      return branch == null ? null : conversionOf(nonNullOf(source), branch);
+    }
+    if (type == Schema.Type.RECORD && source.getType() == Schema.Type.RECORD) {
+      return new RecordProjection(source, target);
+    }
+    if (type == Schema.Type.LONG || type == Schema.Type.FLOAT || type == Schema.Type.DOUBLE) {
+      return type;
+    }
+    return null;
+  }
+
+  private static Schema nonNullOf(Schema schema) {
+    if (schema.getType() != Schema.Type.UNION) {
+      return schema;
+    }
+    Schema branch = nonNullBranch(schema);
+    return branch == null ? schema : branch;
+  }
+
+  private static Schema nonNullBranch(Schema union) {
+    List<Schema> types = union.getTypes();
+    if (types.size() != 2) {
+      return null;
+    }
+    if (types.get(0).getType() == Schema.Type.NULL) {
+      return types.get(1);
+    }
+    return types.get(1).getType() == Schema.Type.NULL ? types.get(0) : null;
+  }
+}
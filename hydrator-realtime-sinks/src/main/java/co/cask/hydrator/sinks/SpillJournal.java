@@ -0,0 +1,338 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Append-only journal of messages on local disk, used by the {@link KafkaProducer} sink to hold
+ * messages that could not be sent while the brokers are unreachable.
+ *
+ * <p>Messages are appended to memory-mapped segment files and read back in the order they were
+ * appended. Every segment starts with its write and read offsets, so messages that were not
+ * replayed before the sink stopped are replayed after it restarts. Appends are refused once the
+ * segments would take more than the configured number of bytes. Appends may come from the
+ * producer's callback thread; reads and consumption only from the writing thread.</p>
+ */
+final class SpillJournal implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(SpillJournal.class);
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".spill";
+
+  // Write offset followed by read offset.
+  private static final int HEADER_BYTES = 8;
+  private static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+  private final File dir;
+  private final long maxBytes;
+  private final int segmentBytes;
+
+  // Segments oldest first. The last one takes appends.
+  private final Deque<Segment> segments = new ArrayDeque<Segment>();
+
+  // Total size of the segment files.
+  private long diskBytes;
+
+  // Number of messages appended and not consumed yet.
+  private long size;
+
+  // Sequence number of the next segment file.
+  private long nextSequence;
+
+  SpillJournal(File dir, long maxBytes) throws IOException {
+    this(dir, maxBytes, DEFAULT_SEGMENT_BYTES);
+  }
+
+  SpillJournal(File dir, long maxBytes, int segmentBytes) throws IOException {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.segmentBytes = (int) Math.min(segmentBytes, maxBytes);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create spill directory " + dir);
+    }
+    recover();
+  }
+
+  /**
+   * A message read back from the journal.
+   */
+  static final class Entry {
+    final String topic;
+    // Null if the producer picks the partition.
+    final Integer partition;
+    final String key;
+    final byte[] body;
+
+    private Entry(String topic, @Nullable Integer partition, @Nullable String key, byte[] body) {
+      this.topic = topic;
+      this.partition = partition;
+      this.key = key;
+      this.body = body;
+    }
+  }
+
+  /**
+   * Appends a message to the end of the journal.
+   *
+   * @return false if the journal is full and the message was not appended.
+   */
+  synchronized boolean append(String topic, @Nullable Integer partition, @Nullable String key,
+                              byte[] body) throws IOException {
+    byte[] topicBytes = topic.getBytes(Charsets.UTF_8);
+    byte[] keyBytes = key == null ? null : key.getBytes(Charsets.UTF_8);
+    int length = 4 + topicBytes.length + 4 + 4 + (keyBytes == null ? 0 : keyBytes.length) + body.length;
+
+    Segment tail = segments.peekLast();
+    if (tail == null || tail.buffer.capacity() - tail.writeOffset < 4 + length) {
+      int capacity = Math.max(segmentBytes, HEADER_BYTES + 4 + length);
+      if (diskBytes + capacity > maxBytes) {
+        return false;
+      }
+      tail = createSegment(capacity);
+    }
+
+    ByteBuffer buffer = tail.buffer;
+    buffer.position(tail.writeOffset);
+    buffer.putInt(length);
+    buffer.putInt(topicBytes.length);
+    buffer.put(topicBytes);
+    buffer.putInt(partition == null ? -1 : partition);
+    if (keyBytes == null) {
+      buffer.putInt(-1);
+    } else {
+      buffer.putInt(keyBytes.length);
+      buffer.put(keyBytes);
+    }
+    buffer.put(body);
+
+    // The offset is published after the message, so a torn append is never read back.
+    tail.writeOffset = buffer.position();
+    buffer.putInt(0, tail.writeOffset);
+    size++;
+    return true;
+  }
+
+  /**
+   * Returns up to {@code max} of the oldest messages without removing them.
+   */
+  synchronized List<Entry> peek(int max) {
+    List<Entry> entries = Lists.newArrayList();
+    for (Segment segment : segments) {
+      int offset = segment.readOffset;
+      while (entries.size() < max && offset < segment.writeOffset) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset);
+        int length = buffer.getInt();
+        entries.add(readEntry(buffer, length));
+        offset += 4 + length;
+      }
+      if (entries.size() >= max) {
+        break;
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Removes the {@code count} oldest messages, deleting the segments that have been fully read.
+   */
+  synchronized void consume(int count) throws IOException {
+    while (count > 0 && !segments.isEmpty()) {
+      Segment head = segments.peekFirst();
+      while (count > 0 && head.readOffset < head.writeOffset) {
+        head.readOffset += 4 + head.buffer.getInt(head.readOffset);
+        count--;
+        size--;
+      }
+      head.buffer.putInt(4, head.readOffset);
+      if (head.readOffset >= head.writeOffset) {
+        segments.pollFirst();
+        diskBytes -= head.buffer.capacity();
+        head.delete();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of messages in the journal.
+   */
+  synchronized long size() {
+    return size;
+  }
+
+  synchronized boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public synchronized void close() {
+    for (Segment segment : segments) {
+      segment.buffer.force();
+      segment.unmap();
+    }
+    segments.clear();
+  }
+
+  private Entry readEntry(ByteBuffer buffer, int length) {
+    int end = buffer.position() + length;
+    byte[] topic = new byte[buffer.getInt()];
+    buffer.get(topic);
+    int partition = buffer.getInt();
+    int keyLength = buffer.getInt();
+    String key = null;
+    if (keyLength >= 0) {
+      byte[] keyBytes = new byte[keyLength];
+      buffer.get(keyBytes);
+      key = new String(keyBytes, Charsets.UTF_8);
+    }
+    byte[] body = new byte[end - buffer.position()];
+    buffer.get(body);
+    return new Entry(new String(topic, Charsets.UTF_8), partition < 0 ? null : partition, key, body);
+  }
+
+  /**
+   * Opens the segments left by a previous run, oldest first, and counts their unread messages.
+   */
+  private void recover() throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("Failed to list spill directory " + dir);
+    }
+    // Sequence numbers are zero padded, so names sort in sequence order.
+    Arrays.sort(files);
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+        continue;
+      }
+      long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                                    name.length() - SEGMENT_SUFFIX.length()));
+      nextSequence = Math.max(nextSequence, sequence + 1);
+      Segment segment = new Segment(file, map(file, file.length()));
+      segment.writeOffset = segment.buffer.getInt(0);
+      segment.readOffset = segment.buffer.getInt(4);
+      if (segment.readOffset >= segment.writeOffset) {
+        segment.delete();
+        continue;
+      }
+      for (int offset = segment.readOffset; offset < segment.writeOffset;
+           offset += 4 + segment.buffer.getInt(offset)) {
+        size++;
+      }
+      segments.add(segment);
+      diskBytes += segment.buffer.capacity();
+    }
+    if (size > 0) {
+      LOG.info("Recovered {} spilled messages from {}", size, dir);
+    }
+  }
+
+  private Segment createSegment(int capacity) throws IOException {
+    File file = new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+    Segment segment = new Segment(file, map(file, capacity));
+    segment.writeOffset = HEADER_BYTES;
+    segment.readOffset = HEADER_BYTES;
+    segment.buffer.putInt(0, HEADER_BYTES);
+    segment.buffer.putInt(4, HEADER_BYTES);
+    segments.add(segment);
+    diskBytes += capacity;
+    return segment;
+  }
+
+  private static MappedByteBuffer map(File file, long capacity) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      // The mapping stays valid after the channel is closed.
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * One memory-mapped segment file.
+   */
+  private static final class Segment {
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private int writeOffset;
+    private int readOffset;
+
+    private Segment(File file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    /**
+     * Unmaps the segment and deletes its file. The segment must not be used afterwards.
+     */
+    private void delete() throws IOException {
+      unmap();
+      if (!file.delete()) {
+        throw new IOException("Failed to delete spill segment " + file);
+      }
+    }
+
+    /**
+     * Releases the mapping right away instead of when the buffer is garbage collected, which may take
+     * long enough for deleted segments to pile up in the address space. The segment must not be used
+     * afterwards.
+     */
+    private void unmap() {
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Method invokeCleaner;
+        try {
+          invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (NoSuchMethodException e) {
+          // Java 8 and earlier, buffers expose their cleaner.
+          Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+          cleanerMethod.setAccessible(true);
+          Object cleaner = cleanerMethod.invoke(buffer);
+          if (cleaner != null) {
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+          }
+          return;
+        }
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      } catch (Exception e) {
+        // Not supported by this JVM, the mapping is released when the buffer is collected.
+        LOG.debug("Failed to unmap spill segment {}", file, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded ring buffer handing elements from exactly one producer thread to exactly one consumer thread.
+ *
+ * <p>Neither side takes locks: the producer only advances the tail and the consumer only advances the
+ * head, each publishing its position with an ordered write that the other side reads. The capacity is
+ * rounded up to a power of two so that positions map to slots with a mask.</p>
+ *
+ * @param <E> type of the elements
+ */
+final class SpscRingBuffer<E> {
+  private final Object[] buffer;
+  private final int mask;
+
+  // Position of the next element to take, only advanced by the consumer.
+  private final AtomicLong head = new AtomicLong();
+  // Position of the next element to add, only advanced by the producer.
+  private final AtomicLong tail = new AtomicLong();
+
+  // Last head seen by the producer and last tail seen by the consumer, to avoid reading the other
+  // side's position on every call.
+  private long cachedHead;
+  private long cachedTail;
+
+  SpscRingBuffer(int capacity) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Capacity should be between 1 and 2^30, found " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.buffer = new Object[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * Adds an element, from the producer thread.
+   *
+   * @return false if the buffer is full
+   */
+  boolean offer(E element) {
+    if (element == null) {
+      throw new NullPointerException("Null elements are not supported");
+    }
+    long position = tail.get();
+    if (position - cachedHead >= buffer.length) {
+      cachedHead = head.get();
+      if (position - cachedHead >= buffer.length) {
+        return false;
+      }
+    }
+    buffer[(int) position & mask] = element;
+    tail.lazySet(position + 1);
+    return true;
+  }
+
+  /**
+   * Takes the oldest element, from the consumer thread.
+   *
+   * @return the element, or null if the buffer is empty
+   */
+  @SuppressWarnings("unchecked")
+  E poll() {
+    long position = head.get();
+    if (position >= cachedTail) {
+      cachedTail = tail.get();
+      if (position >= cachedTail) {
+        return null;
+      }
+    }
+    int index = (int) position & mask;
+    E element = (E) buffer[index];
+    buffer[index] = null;
+    head.lazySet(position + 1);
+    return element;
+  }
+
+  /**
+   * Moves up to {@code max} of the oldest elements to a collection, from the consumer thread.
+   *
+   * @return the number of elements moved
+   */
+  @SuppressWarnings("unchecked")
+  int drainTo(Collection<? super E> target, int max) {
+    long position = head.get();
+    cachedTail = tail.get();
+    int count = (int) Math.min(max, cachedTail - position);
+    for (int i = 0; i < count; i++) {
+      int index = (int) (position + i) & mask;
+      target.add((E) buffer[index]);
+      buffer[index] = null;
+    }
+    head.lazySet(position + count);
+    return count;
+  }
+
+  /**
+   * Returns the number of elements in the buffer. Exact only when neither side is running.
+   */
+  int size() {
+    return (int) Math.max(0, tail.get() - head.get());
+  }
+
+  int capacity() {
+    return buffer.length;
+  }
+}
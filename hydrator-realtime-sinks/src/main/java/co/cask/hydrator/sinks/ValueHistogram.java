@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values over a fixed set of buckets.
+ *
+ * <p>Values below 8 have a bucket each; above that every power of two is split into 8 buckets, so a
+ * percentile is off by at most 12.5%. Recording is a single atomic increment and can happen from any
+ * thread, such as the producer's completion callbacks.</p>
+ */
+final class ValueHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  /**
+   * Records one value. Negative values are recorded as 0.
+   */
+  void record(long value) {
+    counts.incrementAndGet(bucketOf(Math.max(0L, value)));
+  }
+
+  /**
+   * Returns the values recorded since the last call and resets the histogram. Values recorded
+   * while the snapshot is taken end up in either this snapshot or the next one.
+   */
+  Snapshot drain() {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      if (counts.get(i) != 0) {
+        snapshot[i] = counts.getAndSet(i, 0);
+        total += snapshot[i];
+      }
+    }
+    return new Snapshot(snapshot, total);
+  }
+
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * Returns the largest value that falls into the bucket.
+   */
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lower + (1L << shift) - 1;
+  }
+
+  /**
+   * Immutable copy of the bucket counts.
+   */
+  static final class Snapshot {
+    private final long[] counts;
+    private final long total;
+
+    private Snapshot(long[] counts, long total) {
+      this.counts = counts;
+      this.total = total;
+    }
+
+    long getCount() {
+      return total;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, or 0 if nothing was recorded.
+     *
+     * @param percentile percentile between 0 and 100.
+     */
+    long getPercentile(double percentile) {
+      if (total == 0) {
+        return 0;
+      }
+      long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return upperBoundOf(i);
+        }
+      }
+      return getMax();
+    }
+
+    /**
+     * Returns the upper bound of the highest non-empty bucket, or 0 if nothing was recorded.
+     */
+    long getMax() {
+      for (int i = counts.length - 1; i >= 0; i--) {
+        if (counts[i] != 0) {
+          return upperBoundOf(i);
+        }
+      }
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.IndexedRecord;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Decides when the {@link KiteDatasetWriter} sink closes its files and starts new ones.
+ *
+ * <p>A file is rolled once it holds a number of records, an estimated number of bytes, or has been
+ * open for some time, whichever comes first. Limits that are not set are not checked. Sizes are
+ * estimated from the record contents before encoding and compression, so they are an upper bound
+ * of what ends up in the file.</p>
+ */
+final class WriterRollPolicy {
+  private final Long maxRecords;
+  private final Long maxBytes;
+  private final Long maxOpenMs;
+
+  private long records;
+  private long bytes;
+  private long openedMillis;
+
+  WriterRollPolicy(@Nullable Long maxRecords, @Nullable Long maxBytes, @Nullable Long maxOpenMs) {
+    this.maxRecords = maxRecords;
+    this.maxBytes = maxBytes;
+    this.maxOpenMs = maxOpenMs;
+  }
+
+  /**
+   * Starts tracking a newly opened file.
+   */
+  void opened(long now) {
+    records = 0;
+    bytes = 0;
+    openedMillis = now;
+  }
+
+  /**
+   * Accounts for a record written to the current file.
+   */
+  void written(Object datum) {
+    records++;
+    if (maxBytes != null) {
+      bytes += sizeOf(datum);
+    }
+  }
+
+  /**
+   * Returns whether the current file holds as many records or bytes as allowed.
+   */
+  boolean isFull() {
+    return (maxRecords != null && records >= maxRecords) || (maxBytes != null && bytes >= maxBytes);
+  }
+
+  /**
+   * Returns whether the current file should be rolled, because it is full or has been open for too long.
+   */
+  boolean shouldRoll(long now) {
+    return isFull() || (maxOpenMs != null && records > 0 && now - openedMillis >= maxOpenMs);
+  }
+
+  /**
+   * Returns the time at which the current file is due to be rolled for having been open too long, or
+   * {@link Long#MAX_VALUE} if it never is.
+   */
+  long rollDeadline() {
+    return maxOpenMs == null || records == 0 ? Long.MAX_VALUE : openedMillis + maxOpenMs;
+  }
+
+  long getRecords() {
+    return records;
+  }
+
+  long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Estimates the number of bytes a datum takes once encoded, without compression.
+   */
+  static long sizeOf(@Nullable Object datum) {
+    if (datum == null) {
+      return 1;
+    }
+    if (datum instanceof IndexedRecord) {
+      IndexedRecord record = (IndexedRecord) datum;
+      long size = 0;
+      int fields = record.getSchema().getFields().size();
+      for (int i = 0; i < fields; i++) {
+        size += sizeOf(record.get(i));
+      }
+      return size;
+    }
+    if (datum instanceof CharSequence) {
+      // Mostly ASCII, one byte per character.
+      return ((CharSequence) datum).length() + 5;
+    }
+    if (datum instanceof ByteBuffer) {
+      return ((ByteBuffer) datum).remaining() + 5;
+    }
+    if (datum instanceof byte[]) {
+      return ((byte[]) datum).length + 5;
+    }
+    if (datum instanceof GenericFixed) {
+      return ((GenericFixed) datum).bytes().length;
+    }
+    if (datum instanceof Collection) {
+      long size = 5;
+      for (Object element : (Collection<?>) datum) {
+        size += sizeOf(element);
+      }
+      return size;
+    }
+    if (datum instanceof Map) {
+      long size = 5;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) datum).entrySet()) {
+        size += sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+      }
+      return size;
+    }
+    if (datum instanceof Integer || datum instanceof Float) {
+      return 4;
+    }
+    if (datum instanceof Boolean) {
+      return 1;
+    }
+    // Longs, doubles and enums.
+    return 8;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link AdaptiveWindowController}.
+ */
+public class AdaptiveWindowControllerTest {
+  private static final long INTERVAL = AdaptiveWindowController.INTERVAL_MS;
+
+  @Test
+  public void testShrinkAndGrowWithinBounds() {
+    long now = 0;
+    AdaptiveWindowController controller = new AdaptiveWindowController(1, 1000, 5000, 100000, now);
+    Assert.assertEquals(1000, controller.getWindow());
+
+    // Nothing changes before an interval has passed or without acks.
+    Assert.assertFalse(controller.update(now + INTERVAL / 2));
+    Assert.assertFalse(controller.update(now + INTERVAL));
+
+    // Latency above the upper bound halves the window, down to the minimum.
+    for (int i = 0; i < 20; i++) {
+      controller.recordAck(200000);
+      now += INTERVAL;
+      Assert.assertTrue(controller.update(now));
+    }
+    Assert.assertEquals(1, controller.getWindow());
+    Assert.assertTrue(controller.getLatencyMicros() >= 200000);
+
+    // Latency below the lower bound grows the window, up to the maximum.
+    for (int i = 0; i < 100; i++) {
+      controller.recordAck(1000);
+      now += INTERVAL;
+      controller.update(now);
+    }
+    Assert.assertEquals(1000, controller.getWindow());
+  }
+
+  @Test
+  public void testTurnsAroundWhenThroughputDrops() {
+    long now = 0;
+    AdaptiveWindowController controller = new AdaptiveWindowController(1, 1000, 1000, 100000, now);
+
+    // Shrink once so that there is room to grow.
+    controller.recordAck(200000);
+    now += INTERVAL;
+    controller.update(now);
+    Assert.assertEquals(500, controller.getWindow());
+
+    // Latency within the bounds, throughput steady: keeps shrinking.
+    recordAcks(controller, 100, 10000);
+    now += INTERVAL;
+    controller.update(now);
+    Assert.assertEquals(375, controller.getWindow());
+    Assert.assertEquals(100, controller.getThroughput(), 0.001);
+
+    // Throughput drops: turns around and grows.
+    recordAcks(controller, 50, 10000);
+    now += INTERVAL;
+    controller.update(now);
+    Assert.assertEquals(468, controller.getWindow());
+  }
+
+  private void recordAcks(AdaptiveWindowController controller, int count, long latencyMicros) {
+    for (int i = 0; i < count; i++) {
+      controller.recordAck(latencyMicros);
+    }
+  }
+}
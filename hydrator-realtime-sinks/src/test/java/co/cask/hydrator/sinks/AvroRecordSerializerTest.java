@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import co.cask.cdap.api.data.format.StructuredRecord;
+import co.cask.cdap.api.data.schema.Schema;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link AvroRecordSerializer}.
+ */
+public class AvroRecordSerializerTest {
+  private static final Schema INNER = Schema.recordOf("inner",
+                                                      Schema.Field.of("x", Schema.of(Schema.Type.INT)));
+
+  private static final Schema INPUT = Schema.recordOf(
+    "input",
+    Schema.Field.of("a", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("b", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("c", Schema.arrayOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("d", Schema.mapOf(Schema.of(Schema.Type.STRING), Schema.of(Schema.Type.BOOLEAN))),
+    Schema.Field.of("e", Schema.unionOf(Schema.of(Schema.Type.INT), Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("f", Schema.nullableOf(INNER)),
+    Schema.Field.of("g", Schema.of(Schema.Type.BYTES)));
+
+  @Test
+  public void testSerialize() throws Exception {
+    AvroRecordSerializer serializer = new AvroRecordSerializer(INPUT);
+    StructuredRecord record = StructuredRecord.builder(INPUT)
+      .set("a", 1L)
+      .set("b", null)
+      .set("c", ImmutableList.of(1.5, 2.5))
+      .set("d", ImmutableMap.of("k", true))
+      .set("e", "union")
+      .set("f", StructuredRecord.builder(INNER).set("x", 7).build())
+      .set("g", new byte[] { 1, 2, 3 })
+      .build();
+
+    byte[] message = serializer.serialize(record);
+    Assert.assertEquals((byte) 0xC3, message[0]);
+    Assert.assertEquals((byte) 0x01, message[1]);
+    long fingerprint = ByteBuffer.wrap(message, 2, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+    Assert.assertEquals(SchemaNormalization.parsingFingerprint64(serializer.getAvroSchema()), fingerprint);
+    Assert.assertEquals(fingerprint, serializer.getFingerprint());
+
+    GenericRecord decoded = decode(serializer.getAvroSchema(), message);
+    Assert.assertEquals(1L, decoded.get("a"));
+    Assert.assertNull(decoded.get("b"));
+    Assert.assertEquals(ImmutableList.of(1.5, 2.5), ImmutableList.copyOf((List<?>) decoded.get("c")));
+    Assert.assertEquals(true, ((Map<?, ?>) decoded.get("d")).values().iterator().next());
+    Assert.assertEquals("union", decoded.get("e").toString());
+    Assert.assertEquals(7, ((GenericRecord) decoded.get("f")).get("x"));
+    Assert.assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), decoded.get("g"));
+
+    // The serializer is reused across records.
+    StructuredRecord second = StructuredRecord.builder(INPUT)
+      .set("a", 2L)
+      .set("b", "second")
+      .set("c", new Double[] { 3.5 })
+      .set("d", ImmutableMap.<String, Boolean>of())
+      .set("e", 3)
+      .set("f", null)
+      .set("g", ByteBuffer.wrap(new byte[] { 4 }))
+      .build();
+    decoded = decode(serializer.getAvroSchema(), serializer.serialize(second));
+    Assert.assertEquals(2L, decoded.get("a"));
+    Assert.assertEquals("second", decoded.get("b").toString());
+    Assert.assertEquals(ImmutableList.of(3.5), ImmutableList.copyOf((List<?>) decoded.get("c")));
+    Assert.assertEquals(3, decoded.get("e"));
+    Assert.assertNull(decoded.get("f"));
+    Assert.assertEquals(ByteBuffer.wrap(new byte[] { 4 }), decoded.get("g"));
+  }
+
+  @Test
+  public void testPrimitiveArrays() throws Exception {
+    Schema schema = Schema.recordOf(
+      "arrays",
+      Schema.Field.of("ints", Schema.arrayOf(Schema.of(Schema.Type.INT))),
+      Schema.Field.of("longs", Schema.nullableOf(Schema.arrayOf(Schema.of(Schema.Type.LONG)))),
+      Schema.Field.of("doubles", Schema.unionOf(Schema.of(Schema.Type.STRING),
+                                                Schema.arrayOf(Schema.of(Schema.Type.DOUBLE)))));
+    AvroRecordSerializer serializer = new AvroRecordSerializer(schema);
+    StructuredRecord record = StructuredRecord.builder(schema)
+      .set("ints", new int[] { 1, 2, 3 })
+      .set("longs", new long[] { 4L })
+      .set("doubles", new double[] { 5.5 })
+      .build();
+
+    GenericRecord decoded = decode(serializer.getAvroSchema(), serializer.serialize(record));
+    Assert.assertEquals(ImmutableList.of(1, 2, 3), ImmutableList.copyOf((List<?>) decoded.get("ints")));
+    Assert.assertEquals(ImmutableList.of(4L), ImmutableList.copyOf((List<?>) decoded.get("longs")));
+    Assert.assertEquals(ImmutableList.of(5.5), ImmutableList.copyOf((List<?>) decoded.get("doubles")));
+  }
+
+  private GenericRecord decode(org.apache.avro.Schema schema, byte[] message) throws Exception {
+    GenericDatumReader<GenericRecord> reader = new GenericDatumReader<GenericRecord>(schema);
+    return reader.read(null, DecoderFactory.get().binaryDecoder(message, AvroRecordSerializer.HEADER_SIZE,
+                                                                message.length - AvroRecordSerializer.HEADER_SIZE,
+                                                                null));
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kitesdk.data.Dataset;
+import org.kitesdk.data.DatasetDescriptor;
+import org.kitesdk.data.DatasetReader;
+import org.kitesdk.data.DatasetWriter;
+import org.kitesdk.data.Datasets;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link DatasetCompactor}.
+ */
+public class DatasetCompactorTest {
+  private static final Schema SCHEMA = SchemaBuilder.record("r").fields()
+    .requiredLong("id").requiredString("name").endRecord();
+
+  @Rule
+  public final TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private File dir;
+  private Dataset<GenericRecord> dataset;
+  private FileSystem fs;
+  private long nextId;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new File(tmpFolder.newFolder(), "dataset");
+    dataset = Datasets.create("dataset:file:" + dir.getAbsolutePath(),
+                              new DatasetDescriptor.Builder().schema(SCHEMA).build(), GenericRecord.class);
+    fs = FileSystem.getLocal(new Configuration());
+  }
+
+  @Test
+  public void testMerge() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      writeFile(10);
+    }
+    Assert.assertEquals(5, dataFiles().size());
+
+    DatasetCompactor compactor = new DatasetCompactor(fs, new Path(dir.getAbsolutePath()), 1024 * 1024, null);
+    Assert.assertEquals(5, compactor.compact());
+    Assert.assertEquals(1, dataFiles().size());
+    Assert.assertEquals(5, compactor.drainMergedFiles());
+    Assert.assertTrue(compactor.drainMergedBytes() > 0);
+
+    List<Long> ids = readIds();
+    Collections.sort(ids);
+    Assert.assertEquals(50, ids.size());
+    for (int i = 0; i < ids.size(); i++) {
+      Assert.assertEquals(i, ids.get(i).longValue());
+    }
+
+    // A single file is left as it is.
+    Assert.assertEquals(0, compactor.compact());
+  }
+
+  @Test
+  public void testTargetSize() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      writeFile(100);
+    }
+    long fileBytes = dataFiles().get(0).getLen();
+
+    // Two files fit in the target size, so the four are merged in pairs.
+    DatasetCompactor compactor = new DatasetCompactor(fs, new Path(dir.getAbsolutePath()), fileBytes * 5 / 2, null);
+    Assert.assertEquals(4, compactor.compact());
+    Assert.assertEquals(2, dataFiles().size());
+    Assert.assertEquals(400, readIds().size());
+  }
+
+  @Test
+  public void testRecoverAfterRename() throws Exception {
+    writeFile(10);
+    writeFile(10);
+    List<FileStatus> files = dataFiles();
+
+    // The merged file was renamed, but the source was not deleted yet.
+    writeManifest("interrupted", files.get(0).getPath().getName(), files.get(1).getPath().getName());
+    DatasetCompactor compactor = new DatasetCompactor(fs, new Path(dir.getAbsolutePath()), 1024 * 1024, null);
+    compactor.compact();
+
+    Assert.assertEquals(1, dataFiles().size());
+    Assert.assertEquals(files.get(0).getPath().getName(), dataFiles().get(0).getPath().getName());
+    Assert.assertFalse(fs.exists(new Path(dir.getAbsolutePath(), DatasetCompactor.MANIFEST_PREFIX + "interrupted")));
+  }
+
+  @Test
+  public void testRecoverBeforeRename() throws Exception {
+    writeFile(10);
+    writeFile(10);
+    List<FileStatus> files = dataFiles();
+
+    // The merged file was being written, and not renamed yet.
+    Path tmp = new Path(dir.getAbsolutePath(), ".merged.avro.tmp");
+    fs.create(tmp).close();
+    writeManifest("interrupted", "merged.avro", files.get(0).getPath().getName(), files.get(1).getPath().getName());
+    DatasetCompactor compactor = new DatasetCompactor(fs, new Path(dir.getAbsolutePath()), 1024 * 1024, null);
+    compactor.compact();
+
+    // The sources are kept, and merged again.
+    Assert.assertFalse(fs.exists(tmp));
+    Assert.assertEquals(1, dataFiles().size());
+    Assert.assertEquals(20, readIds().size());
+  }
+
+  @Test
+  public void testRecoverBeforeWrite() throws Exception {
+    writeFile(10);
+    writeFile(10);
+    List<FileStatus> files = dataFiles();
+
+    // Only the manifest was written.
+    writeManifest("interrupted", "merged.avro", files.get(0).getPath().getName(), files.get(1).getPath().getName());
+    DatasetCompactor compactor = new DatasetCompactor(fs, new Path(dir.getAbsolutePath()), 1024 * 1024, null);
+    Assert.assertEquals(2, compactor.compact());
+
+    Assert.assertFalse(fs.exists(new Path(dir.getAbsolutePath(), DatasetCompactor.MANIFEST_PREFIX + "interrupted")));
+    Assert.assertEquals(1, dataFiles().size());
+    Assert.assertEquals(20, readIds().size());
+  }
+
+  private void writeFile(int records) {
+    DatasetWriter<GenericRecord> writer = dataset.newWriter();
+    try {
+      for (int i = 0; i < records; i++) {
+        GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("id", nextId);
+        record.put("name", "record " + nextId++);
+        writer.write(record);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private void writeManifest(String id, String... names) throws Exception {
+    FSDataOutputStream out = fs.create(new Path(dir.getAbsolutePath(), DatasetCompactor.MANIFEST_PREFIX + id));
+    try {
+      for (String name : names) {
+        out.write((name + "\n").getBytes(Charsets.UTF_8));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private List<FileStatus> dataFiles() throws Exception {
+    List<FileStatus> files = Lists.newArrayList();
+    for (FileStatus status : fs.listStatus(new Path(dir.getAbsolutePath()))) {
+      if (status.getPath().getName().endsWith(".avro") && !status.getPath().getName().startsWith(".")) {
+        files.add(status);
+      }
+    }
+    return files;
+  }
+
+  private List<Long> readIds() {
+    List<Long> ids = Lists.newArrayList();
+    DatasetReader<GenericRecord> reader = dataset.newReader();
+    try {
+      for (GenericRecord record : reader) {
+        ids.add((Long) record.get("id"));
+      }
+    } finally {
+      reader.close();
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import co.cask.cdap.api.data.format.StructuredRecord;
+import co.cask.cdap.api.data.format.UnexpectedFormatException;
+import co.cask.cdap.api.data.schema.Schema;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link GenericRecordConverter}.
+ */
+public class GenericRecordConverterTest {
+  private static final Schema INNER =
+    Schema.recordOf("inner",
+                    Schema.Field.of("x", Schema.of(Schema.Type.INT)),
+                    Schema.Field.of("y", Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+
+  private static final Schema SCHEMA =
+    Schema.recordOf("outer",
+                    Schema.Field.of("a", Schema.of(Schema.Type.LONG)),
+                    Schema.Field.of("b", Schema.of(Schema.Type.STRING)),
+                    Schema.Field.of("c", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+                    Schema.Field.of("d", INNER),
+                    Schema.Field.of("e", Schema.arrayOf(INNER)),
+                    Schema.Field.of("f", Schema.mapOf(Schema.of(Schema.Type.STRING), Schema.of(Schema.Type.INT))));
+
+  @Test
+  public void testConvert() {
+    GenericRecordConverter converter = new GenericRecordConverter(SCHEMA);
+    StructuredRecord inner1 = StructuredRecord.builder(INNER).set("x", 1).set("y", "one").build();
+    StructuredRecord inner2 = StructuredRecord.builder(INNER).set("x", 2).build();
+    StructuredRecord record = StructuredRecord.builder(SCHEMA)
+      .set("a", 5L).set("b", "five").set("d", inner1)
+      .set("e", ImmutableList.of(inner1, inner2))
+      .set("f", ImmutableMap.of("k", 7))
+      .build();
+
+    GenericRecord converted = converter.convert(record);
+    Assert.assertTrue(GenericData.get().validate(converter.getAvroSchema(), converted));
+    Assert.assertEquals(5L, converted.get("a"));
+    Assert.assertEquals("five", converted.get("b"));
+    Assert.assertNull(converted.get("c"));
+
+    GenericRecord nested = (GenericRecord) converted.get("d");
+    Assert.assertSame(converter.getAvroSchema().getField("d").schema(), nested.getSchema());
+    Assert.assertEquals(1, nested.get("x"));
+    Assert.assertEquals("one", nested.get("y"));
+
+    List<?> array = (List<?>) converted.get("e");
+    Assert.assertEquals(2, array.size());
+    Assert.assertEquals(2, ((GenericRecord) array.get(1)).get("x"));
+    Assert.assertNull(((GenericRecord) array.get(1)).get("y"));
+
+    Assert.assertEquals(7, ((Map<?, ?>) converted.get("f")).get("k"));
+  }
+
+  @Test
+  public void testUnionBranchFromValueType() {
+    Schema other = Schema.recordOf("other", Schema.Field.of("z", Schema.of(Schema.Type.BOOLEAN)));
+    Schema schema = Schema.recordOf(
+      "r", Schema.Field.of("u", Schema.unionOf(Schema.of(Schema.Type.STRING), Schema.of(Schema.Type.LONG),
+                                               Schema.of(Schema.Type.DOUBLE), INNER, other,
+                                               Schema.of(Schema.Type.NULL))));
+    GenericRecordConverter converter = new GenericRecordConverter(schema);
+
+    // Values of a type in the union go to its branch, even if an earlier branch could take them.
+    Assert.assertEquals(5L, convertUnion(converter, schema, 5L));
+    Assert.assertEquals("5", convertUnion(converter, schema, "5"));
+    Assert.assertEquals(2.5d, convertUnion(converter, schema, 2.5d));
+
+    // Numbers without a branch of their own are widened to the narrowest branch that takes them.
+    Assert.assertEquals(5L, convertUnion(converter, schema, 5));
+    Assert.assertEquals(1.5d, convertUnion(converter, schema, 1.5f));
+    Assert.assertNull(convertUnion(converter, schema, null));
+
+    // Records are matched by name.
+    StructuredRecord inner = StructuredRecord.builder(INNER).set("x", 3).build();
+    StructuredRecord otherRecord = StructuredRecord.builder(other).set("z", true).build();
+    Assert.assertEquals("inner", ((GenericRecord) convertUnion(converter, schema, inner)).getSchema().getName());
+    Assert.assertEquals("other", ((GenericRecord) convertUnion(converter, schema, otherRecord)).getSchema().getName());
+  }
+
+  @Test(expected = UnexpectedFormatException.class)
+  public void testUnionWithoutMatchingBranch() {
+    Schema schema = Schema.recordOf(
+      "r", Schema.Field.of("u", Schema.unionOf(Schema.of(Schema.Type.INT), Schema.of(Schema.Type.STRING))));
+    GenericRecordConverter converter = new GenericRecordConverter(schema);
+    convertUnion(converter, schema, true);
+  }
+
+  @Test
+  public void testPrimitiveArrays() {
+    Schema schema = Schema.recordOf(
+      "r", Schema.Field.of("i", Schema.arrayOf(Schema.of(Schema.Type.INT))),
+      Schema.Field.of("d", Schema.arrayOf(Schema.of(Schema.Type.DOUBLE))),
+      Schema.Field.of("u", Schema.unionOf(Schema.of(Schema.Type.STRING), Schema.arrayOf(Schema.of(Schema.Type.LONG)))));
+    GenericRecordConverter converter = new GenericRecordConverter(schema);
+    StructuredRecord record = StructuredRecord.builder(schema).set("i", new int[] { 1, 2 })
+      .set("d", new double[] { 0.5d }).set("u", new long[] { 3L, 4L, 5L }).build();
+
+    GenericRecord converted = converter.convert(record);
+    Assert.assertTrue(GenericData.get().validate(converter.getAvroSchema(), converted));
+    Assert.assertEquals(ImmutableList.of(1, 2), converted.get("i"));
+    Assert.assertEquals(ImmutableList.of(0.5d), converted.get("d"));
+    Assert.assertEquals(ImmutableList.of(3L, 4L, 5L), converted.get("u"));
+  }
+
+  private Object convertUnion(GenericRecordConverter converter, Schema schema, Object value) {
+    return converter.convert(StructuredRecord.builder(schema).set("u", value).build()).get("u");
+  }
+
+  @Test
+  public void testBytesWithoutCopy() throws Exception {
+    Schema schema = Schema.recordOf(
+      "r", Schema.Field.of("b", Schema.of(Schema.Type.BYTES)),
+      Schema.Field.of("n", Schema.nullableOf(Schema.of(Schema.Type.BYTES))),
+      Schema.Field.of("u", Schema.unionOf(Schema.of(Schema.Type.STRING), Schema.of(Schema.Type.BYTES))));
+    GenericRecordConverter converter = new GenericRecordConverter(schema);
+
+    byte[] payload = new byte[16 * 1024 * 1024];
+    payload[payload.length - 1] = 42;
+    ByteBuffer slice = ByteBuffer.wrap(payload, 1024, 4096);
+    StructuredRecord record = StructuredRecord.builder(schema).set("b", payload).set("n", slice)
+      .set("u", payload).build();
+
+    // Arrays are wrapped and buffers passed on, both backed by the original payload.
+    GenericRecord converted = converter.convert(record);
+    ByteBuffer wrapped = (ByteBuffer) converted.get("b");
+    Assert.assertSame(payload, wrapped.array());
+    Assert.assertEquals(payload.length, wrapped.remaining());
+    Assert.assertSame(slice, converted.get("n"));
+    Assert.assertSame(payload, ((ByteBuffer) converted.get("u")).array());
+
+    // Avro encodes the converted record, with the bytes from the buffer position only.
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+    new GenericDatumWriter<GenericRecord>(converter.getAvroSchema()).write(converted, encoder);
+    Assert.assertTrue(out.size() > payload.length * 2 + 4096 && out.size() < payload.length * 2 + 4096 + 32);
+
+    // Converting allocates the record and buffer wrappers, nothing in proportion to the payload.
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+    long threadId = Thread.currentThread().getId();
+    long before = allocations.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < 100; i++) {
+      converter.convert(record);
+    }
+    long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+    Assert.assertTrue("Allocated " + allocated + " bytes", allocated < payload.length / 16);
+  }
+
+  @Test(expected = UnexpectedFormatException.class)
+  public void testMissingRequiredField() {
+    Schema schema = Schema.recordOf("r", Schema.Field.of("a", Schema.of(Schema.Type.STRING)),
+                                    Schema.Field.of("b", Schema.of(Schema.Type.NULL)));
+    new GenericRecordConverter(schema).convert(StructuredRecord.builder(schema).build());
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link InFlightLimiter}.
+ */
+public class InFlightLimiterTest {
+
+  @Test
+  public void testMessageLimit() throws Exception {
+    final InFlightLimiter limiter = new InFlightLimiter(2, null);
+    limiter.acquire(10);
+    limiter.acquire(10);
+    Assert.assertEquals(2, limiter.getInFlightMessages());
+    Assert.assertEquals(20, limiter.getInFlightBytes());
+    Assert.assertEquals(0, limiter.drainBlockedNanos());
+
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread sender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          limiter.acquire(10);
+          acquired.countDown();
+        } catch (InterruptedException e) {
+          // exit
+        }
+      }
+    };
+    sender.start();
+    Assert.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+    limiter.release(10);
+    Assert.assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    sender.join();
+    Assert.assertEquals(2, limiter.getInFlightMessages());
+    Assert.assertTrue(limiter.drainBlockedNanos() >= TimeUnit.MILLISECONDS.toNanos(200));
+    Assert.assertEquals(0, limiter.drainBlockedNanos());
+  }
+
+  @Test
+  public void testByteLimit() throws Exception {
+    final InFlightLimiter limiter = new InFlightLimiter(null, 100);
+    limiter.acquire(60);
+
+    // A message larger than the limit waits for everything in flight.
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread sender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          limiter.acquire(500);
+          acquired.countDown();
+        } catch (InterruptedException e) {
+          // exit
+        }
+      }
+    };
+    sender.start();
+    Assert.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+    limiter.release(60);
+    Assert.assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    sender.join();
+    Assert.assertEquals(500, limiter.getInFlightBytes());
+
+    limiter.release(500);
+    Assert.assertEquals(0, limiter.getInFlightMessages());
+    Assert.assertEquals(0, limiter.getInFlightBytes());
+    limiter.acquire(100);
+  }
+
+  @Test
+  public void testInterruptedAcquire() throws Exception {
+    final InFlightLimiter limiter = new InFlightLimiter(2, 100);
+    limiter.acquire(100);
+
+    // Interrupted while waiting for bytes, after taking a message permit.
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    Thread sender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          limiter.acquire(10);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+        }
+      }
+    };
+    sender.start();
+    TimeUnit.MILLISECONDS.sleep(200);
+    sender.interrupt();
+    Assert.assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    sender.join();
+
+    // The message permit was given back.
+    limiter.release(100);
+    Assert.assertTrue(limiter.tryAcquire(10));
+    Assert.assertTrue(limiter.tryAcquire(10));
+    Assert.assertEquals(2, limiter.getInFlightMessages());
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import co.cask.cdap.api.data.format.StructuredRecord;
+import co.cask.cdap.api.data.schema.Schema;
+import org.apache.twill.internal.kafka.EmbeddedKafkaServer;
+import org.apache.twill.internal.utils.Networks;
+import org.apache.twill.internal.zookeeper.InMemoryZKServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link KafkaProducer} throughput against an embedded Kafka server for every compression codec.
+ *
+ * <p>This is not part of the regular test run. Run it with {@code mvn test -Dtest=KafkaProducerBenchmark},
+ * optionally setting {@code -Dbenchmark.records} and {@code -Dbenchmark.batch}.</p>
+ */
+public class KafkaProducerBenchmark {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaProducerBenchmark.class);
+
+  private static final String[] CODECS = { "NONE", "GZIP", "SNAPPY", "LZ4" };
+  private static final int RECORDS = Integer.getInteger("benchmark.records", 200000);
+  private static final int BATCH = Integer.getInteger("benchmark.batch", 1000);
+
+  private static final Schema INPUT = Schema.recordOf("input",
+                                                      Schema.Field.of("a", Schema.of(Schema.Type.LONG)),
+                                                      Schema.Field.of("b", Schema.of(Schema.Type.STRING)),
+                                                      Schema.Field.of("c", Schema.of(Schema.Type.INT)),
+                                                      Schema.Field.of("d", Schema.of(Schema.Type.DOUBLE)),
+                                                      Schema.Field.of("e", Schema.of(Schema.Type.BOOLEAN)));
+
+  @ClassRule
+  public static final TemporaryFolder TMP_FOLDER = new TemporaryFolder();
+
+  private static InMemoryZKServer zkServer;
+  private static EmbeddedKafkaServer kafkaServer;
+  private static int kafkaPort;
+
+  @Test
+  public void benchmarkCompression() throws Exception {
+    List<StructuredRecord> batch = new ArrayList<StructuredRecord>(BATCH);
+    for (int i = 0; i < BATCH; i++) {
+      batch.add(StructuredRecord.builder(INPUT).set("a", (long) i).set("b", "record number " + i)
+                  .set("c", i).set("d", i * 1.5).set("e", i % 2 == 0).build());
+    }
+
+    StringBuilder report = new StringBuilder("\ncodec    records/s    MB/s (uncompressed)\n");
+    for (String codec : CODECS) {
+      KafkaProducer.Config config = new KafkaProducer.Config("localhost:" + kafkaPort, "FALSE", "c", "b",
+                                                             "bench-" + codec.toLowerCase(), "CSV")
+        .setCompressionType(codec)
+        .setBatching(65536, 5L);
+      KafkaProducer producer = new KafkaProducer(config);
+      producer.initialize(new MockRealtimeContext());
+
+      // Warm up the producer and the topic.
+      producer.write(batch, null);
+
+      long bytes = 0;
+      for (StructuredRecord record : batch) {
+        bytes += record.get("b").toString().length() + 32;
+      }
+      int batches = RECORDS / BATCH;
+      long start = System.nanoTime();
+      for (int i = 0; i < batches; i++) {
+        producer.write(batch, null);
+      }
+      long elapsed = System.nanoTime() - start;
+      producer.destroy();
+
+      double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+      report.append(String.format("%-8s %10.0f %10.2f%n", codec, batches * BATCH / seconds,
+                                  batches * bytes / seconds / (1024 * 1024)));
+    }
+    LOG.info(report.toString());
+  }
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    zkServer = InMemoryZKServer.builder().setDataDir(TMP_FOLDER.newFolder()).build();
+    zkServer.startAndWait();
+
+    kafkaPort = Networks.getRandomPort();
+    Properties config = KafkaProducerTest.generateKafkaConfig(zkServer.getConnectionStr(), kafkaPort,
+                                                              TMP_FOLDER.newFolder());
+    // The test configuration rolls segments every 100 bytes, which would dominate the measurement.
+    config.setProperty("log.segment.bytes", Integer.toString(256 * 1024 * 1024));
+    config.setProperty("log.retention.bytes", Long.toString(Long.MAX_VALUE));
+    config.setProperty("log.flush.interval.messages", Long.toString(Long.MAX_VALUE));
+    kafkaServer = new EmbeddedKafkaServer(config);
+    kafkaServer.startAndWait();
+  }
+
+  @AfterClass
+  public static void afterClass() {
+    kafkaServer.stopAndWait();
+    zkServer.stopAndWait();
+  }
+}
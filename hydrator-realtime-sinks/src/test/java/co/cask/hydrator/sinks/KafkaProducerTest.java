@@ -5,6 +5,8 @@ import co.cask.cdap.api.data.schema.Schema;
 import co.cask.cdap.etl.api.realtime.RealtimeSink;
 import com.clearspring.analytics.util.Lists;
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.apache.twill.common.Cancellable;
 import org.apache.twill.internal.kafka.EmbeddedKafkaServer;
 import org.apache.twill.internal.kafka.client.ZKKafkaClientService;
 import org.apache.twill.internal.utils.Networks;
@@ -24,11 +26,17 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Kafka Producer Test Cases. 
@@ -53,6 +61,9 @@ public class KafkaProducerTest {
   // Port on which Kafka broker would be running. 
   protected static int kafkaPort;
 
+  // Directory the Kafka broker keeps its logs in, kept across restarts.
+  private static File kafkaLogDir;
+
   // Input Schema that would be injested into Kafka.
   private static final Schema INPUT = Schema.recordOf("input",
                                                         Schema.Field.of("a", Schema.of(Schema.Type.LONG)),
@@ -89,7 +100,7 @@ public class KafkaProducerTest {
     kafkaproducer.write(input, null);
     
     final CountDownLatch latch = new CountDownLatch(input.size());
-    final List<String> consumedMessages = new ArrayList<String>(input.size());
+    final List<String> consumedMessages = new ArrayList<String>(Collections.nCopies(input.size(), (String) null));
       kafkaClient.getConsumer().prepare()
         .addFromBeginning(testTopic, 0)
         .addFromBeginning(testTopic, 1)
@@ -101,7 +112,7 @@ public class KafkaProducerTest {
             while (messages.hasNext()) {
               FetchedMessage msg = messages.next();
               // Add to array with partition id as index.
-              consumedMessages.add(msg.getTopicPartition().getPartition(), 
+              consumedMessages.set(msg.getTopicPartition().getPartition(), 
                                    Charsets.UTF_8.decode(msg.getPayload()).toString());
               latch.countDown();
             }
@@ -140,7 +151,7 @@ public class KafkaProducerTest {
     kafkaproducer.write(input, null);
 
     final CountDownLatch latch = new CountDownLatch(input.size());
-    final List<String> consumedMessages = new ArrayList<String>(input.size());
+    final List<String> consumedMessages = new ArrayList<String>(Collections.nCopies(input.size(), (String) null));
     kafkaClient.getConsumer().prepare()
       .addFromBeginning(testTopic, 0)
       .addFromBeginning(testTopic, 1)
@@ -152,7 +163,7 @@ public class KafkaProducerTest {
           while (messages.hasNext()) {
             FetchedMessage msg = messages.next();
             // Add to array with partition id as index.
-            consumedMessages.add(msg.getTopicPartition().getPartition(),
+            consumedMessages.set(msg.getTopicPartition().getPartition(),
                                  Charsets.UTF_8.decode(msg.getPayload()).toString());
             latch.countDown();
           }
@@ -191,7 +202,7 @@ public class KafkaProducerTest {
     kafkaproducer.write(input, null);
 
     final CountDownLatch latch = new CountDownLatch(input.size());
-    final List<String> consumedMessages = new ArrayList<String>(input.size());
+    final List<String> consumedMessages = new ArrayList<String>(Collections.nCopies(input.size(), (String) null));
     kafkaClient.getConsumer().prepare()
       .addFromBeginning(testTopic, 0)
       .addFromBeginning(testTopic, 1)
@@ -203,7 +214,7 @@ public class KafkaProducerTest {
           while (messages.hasNext()) {
             FetchedMessage msg = messages.next();
             // Add to array with partition id as index.
-            consumedMessages.add(msg.getTopicPartition().getPartition(),
+            consumedMessages.set(msg.getTopicPartition().getPartition(),
                                  Charsets.UTF_8.decode(msg.getPayload()).toString());
             latch.countDown();
           }
@@ -242,7 +253,7 @@ public class KafkaProducerTest {
     kafkaproducer.write(input, null);
 
     final CountDownLatch latch = new CountDownLatch(input.size());
-    final List<String> consumedMessages = new ArrayList<String>(input.size());
+    final List<String> consumedMessages = new ArrayList<String>(Collections.nCopies(input.size(), (String) null));
     kafkaClient.getConsumer().prepare()
       .addFromBeginning(testTopic, 0)
       .addFromBeginning(testTopic, 1)
@@ -254,7 +265,7 @@ public class KafkaProducerTest {
           while (messages.hasNext()) {
             FetchedMessage msg = messages.next();
             // Add to array with partition id as index.
-            consumedMessages.add(msg.getTopicPartition().getPartition(),
+            consumedMessages.set(msg.getTopicPartition().getPartition(),
                                  Charsets.UTF_8.decode(msg.getPayload()).toString());
             latch.countDown();
           }
@@ -293,7 +304,7 @@ public class KafkaProducerTest {
     kafkaproducer.write(input, null);
 
     final CountDownLatch latch = new CountDownLatch(input.size());
-    final List<String> consumedMessages = new ArrayList<String>(input.size());
+    final List<String> consumedMessages = new ArrayList<String>(Collections.nCopies(input.size(), (String) null));
     kafkaClient.getConsumer().prepare()
       .addFromBeginning(testTopic, 0)
       .addFromBeginning(testTopic, 1)
@@ -305,7 +316,7 @@ public class KafkaProducerTest {
           while (messages.hasNext()) {
             FetchedMessage msg = messages.next();
             // Add to array with partition id as index.
-            consumedMessages.add(msg.getTopicPartition().getPartition(),
+            consumedMessages.set(msg.getTopicPartition().getPartition(),
                                  Charsets.UTF_8.decode(msg.getPayload()).toString());
             latch.countDown();
           }
@@ -345,7 +356,7 @@ public class KafkaProducerTest {
     kafkaproducer.write(input, null);
 
     final CountDownLatch latch = new CountDownLatch(input.size());
-    final List<String> consumedMessages = new ArrayList<String>(input.size());
+    final List<String> consumedMessages = new ArrayList<String>(Collections.nCopies(input.size(), (String) null));
     kafkaClient.getConsumer().prepare()
       .addFromBeginning(testTopic, 0)
       .addFromBeginning(testTopic, 1)
@@ -357,7 +368,7 @@ public class KafkaProducerTest {
           while (messages.hasNext()) {
             FetchedMessage msg = messages.next();
             // Add to array with partition id as index.
-            consumedMessages.add(msg.getTopicPartition().getPartition(),
+            consumedMessages.set(msg.getTopicPartition().getPartition(),
                                  Charsets.UTF_8.decode(msg.getPayload()).toString());
             latch.countDown();
           }
@@ -369,22 +380,394 @@ public class KafkaProducerTest {
       });
     latch.await();
     Assert.assertEquals(4L, consumedMessages.size());
-    Assert.assertEquals("4\tfourth 4\t4\t15.342423442424\ttrue\r\n", consumedMessages.get(0));
-    Assert.assertEquals("1\tfirst 1\t1\t1.0000332\tfalse\r\n", consumedMessages.get(1));
-    Assert.assertEquals("2\tsecond 2\t2\t13.34\ttrue\r\n", consumedMessages.get(2));
-    Assert.assertEquals("3\tthird 3\t3\t14.34\tfalse\r\n", consumedMessages.get(3));
+    Assert.assertEquals("4,fourth 4,4,15.342423442424,true\r\n", consumedMessages.get(0));
+    Assert.assertEquals("1,first 1,1,1.0000332,false\r\n", consumedMessages.get(1));
+    Assert.assertEquals("2,second 2,2,13.34,true\r\n", consumedMessages.get(2));
+    Assert.assertEquals("3,third 3,3,14.34,false\r\n", consumedMessages.get(3));
     kafkaproducer.destroy();
   }  
   
+  @Test
+  public void testFanOutAndRouting() throws Exception {
+    Schema schema = Schema.recordOf("routed",
+                                    Schema.Field.of("c", Schema.of(Schema.Type.INT)),
+                                    Schema.Field.of("t", Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+    KafkaProducer.Config sconfig = new KafkaProducer.Config(getBroker(), "FALSE", "c", null, "fanout1,fanout2",
+                                                            "CSV").setTopicField("t");
+    RealtimeSink<StructuredRecord> kafkaproducer = new KafkaProducer(sconfig);
+    kafkaproducer.initialize(new MockRealtimeContext());
+
+    List<StructuredRecord> input = Lists.newArrayList();
+    input.add(StructuredRecord.builder(schema).set("c", 1).set("t", null).build());
+    input.add(StructuredRecord.builder(schema).set("c", 2).set("t", "routed").build());
+    input.add(StructuredRecord.builder(schema).set("c", 3).set("t", null).build());
+    Assert.assertEquals(3, kafkaproducer.write(input, null));
+    kafkaproducer.destroy();
+
+    // Records without a topic are published to every configured topic, on the same partition.
+    for (String topic : new String[] { "fanout1", "fanout2" }) {
+      List<String> messages = consume(topic, 2);
+      Assert.assertEquals("1,\r\n", messages.get(1));
+      Assert.assertEquals("3,\r\n", messages.get(3));
+    }
+    Assert.assertEquals("2,routed\r\n", consume("routed", 1).get(2));
+  }
+
+  /**
+   * Consumes the given number of messages from a topic, indexed by the partition they were read from.
+   */
+  private List<String> consume(String topic, int count) throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(count);
+    final List<String> consumedMessages = new ArrayList<String>(Collections.nCopies(PARTITIONS, (String) null));
+    Cancellable cancel = kafkaClient.getConsumer().prepare()
+      .addFromBeginning(topic, 0)
+      .addFromBeginning(topic, 1)
+      .addFromBeginning(topic, 2)
+      .addFromBeginning(topic, 3)
+      .consume(new KafkaConsumer.MessageCallback() {
+        @Override
+        public void onReceived(Iterator<FetchedMessage> messages) {
+          while (messages.hasNext()) {
+            FetchedMessage msg = messages.next();
+            consumedMessages.set(msg.getTopicPartition().getPartition(),
+                                 Charsets.UTF_8.decode(msg.getPayload()).toString());
+            latch.countDown();
+          }
+        }
+
+        @Override
+        public void finished() {
+        }
+      });
+    Assert.assertTrue(latch.await(60, TimeUnit.SECONDS));
+    cancel.cancel();
+    return consumedMessages;
+  }
+
+  /**
+   * Consumes the given number of messages from all partitions of a topic, in the order they were read.
+   */
+  private List<String> consumeAll(String topic, int count) throws InterruptedException {
+    List<String> consumedMessages = new ArrayList<String>(count);
+    for (byte[] value : consumeValues(topic, count)) {
+      consumedMessages.add(new String(value, Charsets.UTF_8));
+    }
+    return consumedMessages;
+  }
+
+  /**
+   * Consumes the given number of message values from all partitions of a topic, in the order they were read.
+   */
+  private List<byte[]> consumeValues(String topic, int count) throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(count);
+    final List<byte[]> values = Collections.synchronizedList(new ArrayList<byte[]>());
+    Cancellable cancel = kafkaClient.getConsumer().prepare()
+      .addFromBeginning(topic, 0)
+      .addFromBeginning(topic, 1)
+      .addFromBeginning(topic, 2)
+      .addFromBeginning(topic, 3)
+      .consume(new KafkaConsumer.MessageCallback() {
+        @Override
+        public void onReceived(Iterator<FetchedMessage> messages) {
+          while (messages.hasNext()) {
+            ByteBuffer payload = messages.next().getPayload();
+            byte[] value = new byte[payload.remaining()];
+            payload.get(value);
+            values.add(value);
+            latch.countDown();
+          }
+        }
+
+        @Override
+        public void finished() {
+        }
+      });
+    Assert.assertTrue(latch.await(60, TimeUnit.SECONDS));
+    cancel.cancel();
+    synchronized (values) {
+      return new ArrayList<byte[]>(values);
+    }
+  }
+
+  @Test
+  public void testChunking() throws Exception {
+    Schema schema = Schema.recordOf("chunked",
+                                    Schema.Field.of("c", Schema.of(Schema.Type.INT)),
+                                    Schema.Field.of("s", Schema.of(Schema.Type.STRING)));
+    String large = Strings.repeat("x", 1000);
+    KafkaProducer.Config sconfig = new KafkaProducer.Config(getBroker(), "FALSE", "c", null, "chunked", "CSV")
+      .setMaxMessageBytes(100);
+    RealtimeSink<StructuredRecord> kafkaproducer = new KafkaProducer(sconfig);
+    kafkaproducer.initialize(new MockRealtimeContext());
+
+    List<StructuredRecord> input = Lists.newArrayList();
+    input.add(StructuredRecord.builder(schema).set("c", 1).set("s", large).build());
+    input.add(StructuredRecord.builder(schema).set("c", 2).set("s", "small").build());
+    Assert.assertEquals(2, kafkaproducer.write(input, null));
+    kafkaproducer.destroy();
+
+    // The large message is split into chunks no larger than the limit, the small one is sent as it is.
+    int chunks = MessageChunks.split(("1," + large + "\r\n").getBytes(Charsets.UTF_8), 100, 0).size();
+    Assert.assertTrue(chunks > 1);
+    MessageChunks.Assembler assembler = new MessageChunks.Assembler(16);
+    List<String> assembled = new ArrayList<String>();
+    for (byte[] value : consumeValues("chunked", chunks + 1)) {
+      Assert.assertTrue(value.length <= 100);
+      byte[] message = assembler.add(value);
+      if (message != null) {
+        assembled.add(new String(message, Charsets.UTF_8));
+      }
+    }
+    Collections.sort(assembled);
+    Assert.assertEquals(Arrays.asList("1," + large + "\r\n", "2,small\r\n"), assembled);
+    Assert.assertEquals(0, assembler.getIncomplete());
+  }
+
+  @Test
+  public void testCoalescing() throws Exception {
+    Schema schema = Schema.recordOf("coalesced",
+                                    Schema.Field.of("c", Schema.of(Schema.Type.INT)),
+                                    Schema.Field.of("k", Schema.of(Schema.Type.STRING)),
+                                    Schema.Field.of("n", Schema.of(Schema.Type.INT)));
+    // All messages go to the same partition, so that a dropped record would be read before the kept ones.
+    KafkaProducer.Config sconfig = new KafkaProducer.Config(getBroker(), "FALSE", "c", "k", "coalesced", "CSV")
+      .setCoalesce("TRUE");
+    RealtimeSink<StructuredRecord> kafkaproducer = new KafkaProducer(sconfig);
+    kafkaproducer.initialize(new MockRealtimeContext());
+
+    List<StructuredRecord> input = Lists.newArrayList();
+    input.add(StructuredRecord.builder(schema).set("c", 0).set("k", "a").set("n", 1).build());
+    input.add(StructuredRecord.builder(schema).set("c", 0).set("k", "b").set("n", 2).build());
+    input.add(StructuredRecord.builder(schema).set("c", 0).set("k", "a").set("n", 3).build());
+    Assert.assertEquals(2, kafkaproducer.write(input, null));
+    kafkaproducer.destroy();
+
+    // Only the last record of every key is published, in the order of the batch.
+    Assert.assertEquals(Arrays.asList("0,b,2\r\n", "0,a,3\r\n"), consumeAll("coalesced", 2));
+  }
+
+  @Test
+  public void testInFlightLimits() throws Exception {
+    Schema schema = Schema.recordOf("limited", Schema.Field.of("c", Schema.of(Schema.Type.INT)));
+    // A single message in flight, so that every send waits for the acknowledgment of the one before.
+    KafkaProducer.Config sconfig = new KafkaProducer.Config(getBroker(), "TRUE", "c", null, "limited", "CSV")
+      .setInFlightLimits(1, 1024);
+    RealtimeSink<StructuredRecord> kafkaproducer = new KafkaProducer(sconfig);
+    kafkaproducer.initialize(new MockRealtimeContext());
+
+    List<StructuredRecord> input = Lists.newArrayList();
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 20; i++) {
+      input.add(StructuredRecord.builder(schema).set("c", i).build());
+      expected.add(i + "\r\n");
+    }
+    Assert.assertEquals(20, kafkaproducer.write(input, null));
+    kafkaproducer.destroy();
+    Assert.assertEquals(new HashSet<String>(expected), new HashSet<String>(consumeAll("limited", 20)));
+  }
+
+  @Test
+  public void testAdaptiveWindow() throws Exception {
+    Schema schema = Schema.recordOf("adaptive", Schema.Field.of("n", Schema.of(Schema.Type.INT)));
+    KafkaProducer.Config sconfig = new KafkaProducer.Config(getBroker(), "FALSE", "n", null, "adaptive", "CSV")
+      .setAdaptiveWindow("TRUE", 1L, 1000L);
+    RealtimeSink<StructuredRecord> kafkaproducer = new KafkaProducer(sconfig);
+    kafkaproducer.initialize(new MockRealtimeContext());
+
+    // Batches are an update interval apart, so that each one is sent with the window adapted to the one before.
+    List<String> expected = new ArrayList<String>();
+    int next = 0;
+    for (int batch = 0; batch < 3; batch++) {
+      List<StructuredRecord> input = Lists.newArrayList();
+      for (int i = 0; i < 20; i++, next++) {
+        input.add(StructuredRecord.builder(schema).set("n", next).build());
+        expected.add(next + "\r\n");
+      }
+      Assert.assertEquals(20, kafkaproducer.write(input, null));
+      TimeUnit.MILLISECONDS.sleep(AdaptiveWindowController.INTERVAL_MS);
+    }
+    kafkaproducer.destroy();
+    Assert.assertEquals(new HashSet<String>(expected), new HashSet<String>(consumeAll("adaptive", expected.size())));
+  }
+
+  @Test
+  public void testSyncWindowFailure() throws Exception {
+    Schema schema = Schema.recordOf("syncfail",
+                                    Schema.Field.of("c", Schema.of(Schema.Type.INT)),
+                                    Schema.Field.of("s", Schema.of(Schema.Type.STRING)));
+    KafkaProducer.Config sconfig = new KafkaProducer.Config(getBroker(), "FALSE", "c", null, "syncfail", "CSV")
+      .setSyncWindow(1);
+    RealtimeSink<StructuredRecord> kafkaproducer = new KafkaProducer(sconfig);
+    kafkaproducer.initialize(new MockRealtimeContext());
+
+    // The producer rejects the message over its max request size, which fails the batch when the
+    // window is full again.
+    List<StructuredRecord> input = Lists.newArrayList();
+    input.add(StructuredRecord.builder(schema).set("c", 1).set("s", "first").build());
+    input.add(StructuredRecord.builder(schema).set("c", 2).set("s", Strings.repeat("x", 2 * 1024 * 1024)).build());
+    input.add(StructuredRecord.builder(schema).set("c", 3).set("s", "third").build());
+    try {
+      kafkaproducer.write(input, null);
+      Assert.fail("Write should fail when a message fails");
+    } catch (IOException e) {
+      // expected
+    }
+
+    // The failed batch leaves nothing behind that fails the next one.
+    input = Lists.newArrayList();
+    input.add(StructuredRecord.builder(schema).set("c", 3).set("s", "retried").build());
+    Assert.assertEquals(1, kafkaproducer.write(input, null));
+    kafkaproducer.destroy();
+
+    List<String> consumed = consumeAll("syncfail", 2);
+    Collections.sort(consumed);
+    Assert.assertEquals(Arrays.asList("1,first\r\n", "3,retried\r\n"), consumed);
+  }
+
+  @Test
+  public void testMirror() throws Exception {
+    Schema schema = Schema.recordOf("mirrored", Schema.Field.of("c", Schema.of(Schema.Type.INT)));
+    // The mirror is the same cluster, so every message is published twice.
+    KafkaProducer.Config sconfig = new KafkaProducer.Config(getBroker(), "FALSE", "c", null, "mirrored", "CSV")
+      .setMirrors(getBroker(), "ALL");
+    RealtimeSink<StructuredRecord> kafkaproducer = new KafkaProducer(sconfig);
+    kafkaproducer.initialize(new MockRealtimeContext());
+
+    List<StructuredRecord> input = Lists.newArrayList();
+    for (int i = 0; i < 4; i++) {
+      input.add(StructuredRecord.builder(schema).set("c", i).build());
+    }
+    Assert.assertEquals(4, kafkaproducer.write(input, null));
+    kafkaproducer.destroy();
+
+    List<String> consumed = consumeAll("mirrored", 8);
+    Collections.sort(consumed);
+    Assert.assertEquals(Arrays.asList("0\r\n", "0\r\n", "1\r\n", "1\r\n", "2\r\n", "2\r\n", "3\r\n", "3\r\n"),
+                        consumed);
+  }
+
+  @Test
+  public void testMirrorFailure() throws Exception {
+    Schema schema = Schema.recordOf("mirrorfail", Schema.Field.of("c", Schema.of(Schema.Type.INT)));
+    List<StructuredRecord> input = Lists.newArrayList();
+    input.add(StructuredRecord.builder(schema).set("c", 1).build());
+
+    // Nothing listens on the mirror's port, so its sends fail once the metadata wait is over.
+    String deadBroker = "localhost:" + Networks.getRandomPort();
+    KafkaProducer.Config sconfig = new KafkaProducer.Config(getBroker(), "FALSE", "c", null, "mirrorfail", "CSV")
+      .setProducerProperties("metadata.fetch.timeout.ms:5000");
+
+    // A best effort mirror failing doesn't fail the write.
+    RealtimeSink<StructuredRecord> kafkaproducer = new KafkaProducer(sconfig.setMirrors(deadBroker, "PRIMARY"));
+    kafkaproducer.initialize(new MockRealtimeContext());
+    Assert.assertEquals(1, kafkaproducer.write(input, null));
+    kafkaproducer.destroy();
+
+    // A mirror that must acknowledge fails the write, even though the primary cluster got the message.
+    kafkaproducer = new KafkaProducer(sconfig.setMirrors(deadBroker, "ALL"));
+    kafkaproducer.initialize(new MockRealtimeContext());
+    try {
+      kafkaproducer.write(input, null);
+      Assert.fail("Write should fail when a mirror with the ALL policy fails");
+    } catch (Exception e) {
+      // expected
+    }
+    kafkaproducer.destroy();
+    Assert.assertEquals(Arrays.asList("1\r\n", "1\r\n"), consumeAll("mirrorfail", 2));
+  }
+
+  @Test
+  public void testSpillAndReplay() throws Exception {
+    Schema schema = Schema.recordOf("spilled",
+                                    Schema.Field.of("c", Schema.of(Schema.Type.INT)),
+                                    Schema.Field.of("n", Schema.of(Schema.Type.INT)));
+    KafkaProducer.Config sconfig = new KafkaProducer.Config(getBroker(), "FALSE", "c", null, "spilled", "CSV")
+      .setSpill(TMP_FOLDER.newFolder().getAbsolutePath(), null, 2000L);
+    RealtimeSink<StructuredRecord> kafkaproducer = new KafkaProducer(sconfig);
+    kafkaproducer.initialize(new MockRealtimeContext());
+
+    List<String> expected = new ArrayList<String>();
+    int next = 0;
+    for (int batch = 0; batch < 3; batch++) {
+      if (batch == 1) {
+        // Messages that cannot be sent while the broker is down are spilled.
+        kafkaServer.stopAndWait();
+      } else if (batch == 2) {
+        // Spilled messages are replayed alongside the new ones once the broker is back.
+        startKafkaServer();
+      }
+      List<StructuredRecord> input = Lists.newArrayList();
+      for (int i = 0; i < 10; i++, next++) {
+        input.add(StructuredRecord.builder(schema).set("c", 0).set("n", next).build());
+        expected.add("0," + next + "\r\n");
+      }
+      Assert.assertEquals(10, kafkaproducer.write(input, null));
+    }
+
+    // Replay is retried on later writes if the broker was not ready yet.
+    final List<String> consumed = Collections.synchronizedList(new ArrayList<String>());
+    Cancellable cancel = kafkaClient.getConsumer().prepare()
+      .addFromBeginning("spilled", 0)
+      .consume(new KafkaConsumer.MessageCallback() {
+        @Override
+        public void onReceived(Iterator<FetchedMessage> messages) {
+          while (messages.hasNext()) {
+            consumed.add(Charsets.UTF_8.decode(messages.next().getPayload()).toString());
+          }
+        }
+
+        @Override
+        public void finished() {
+        }
+      });
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+    Set<String> distinct = new HashSet<String>();
+    while (distinct.size() < expected.size() && System.currentTimeMillis() < deadline) {
+      kafkaproducer.write(Collections.<StructuredRecord>emptyList(), null);
+      TimeUnit.MILLISECONDS.sleep(500);
+      synchronized (consumed) {
+        // Delivery is at least once and replayed messages may land after newer ones, only the set counts.
+        distinct = new HashSet<String>(consumed);
+      }
+    }
+    cancel.cancel();
+    kafkaproducer.destroy();
+    Assert.assertEquals(new HashSet<String>(expected), distinct);
+  }
+
+  @Test
+  public void testInvalidProducerTuning() throws Exception {
+    KafkaProducer.Config sconfig = new KafkaProducer.Config(getBroker(), "FALSE", "c", "b", "invalid", "CSV");
+    try {
+      new KafkaProducer(sconfig.setCompressionType("zip")).configurePipeline(null);
+      Assert.fail("Unknown compression type should be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    sconfig.setCompressionType("SNAPPY");
+    try {
+      new KafkaProducer(sconfig.setProducerProperties("value.serializer:foo")).configurePipeline(null);
+      Assert.fail("Serializers should not be overridable");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      new KafkaProducer(sconfig.setProducerProperties("acks")).configurePipeline(null);
+      Assert.fail("Malformed producer properties should be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    new KafkaProducer(sconfig.setProducerProperties("acks:all, retries:3")).configurePipeline(null);
+  }
+
   @BeforeClass
   public static void beforeClass() throws IOException {
     zkServer = InMemoryZKServer.builder().setDataDir(TMP_FOLDER.newFolder()).build();
     zkServer.startAndWait();
 
     kafkaPort = Networks.getRandomPort();
-    kafkaServer = new EmbeddedKafkaServer(generateKafkaConfig(zkServer.getConnectionStr(),
-                                                              kafkaPort, TMP_FOLDER.newFolder()));
-    kafkaServer.startAndWait();
+    kafkaLogDir = TMP_FOLDER.newFolder();
+    startKafkaServer();
 
     zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
     zkClient.startAndWait();
@@ -401,11 +784,19 @@ public class KafkaProducerTest {
     zkClient.stopAndWait();
   }
 
+  /**
+   * Starts the Kafka server, or restarts it with the same port and logs.
+   */
+  private static void startKafkaServer() {
+    kafkaServer = new EmbeddedKafkaServer(generateKafkaConfig(zkServer.getConnectionStr(), kafkaPort, kafkaLogDir));
+    kafkaServer.startAndWait();
+  }
+
   private String getBroker() {
     return "localhost:" + kafkaPort;
   }
 
-  private static Properties generateKafkaConfig(String zkConnectStr, int port, File logDir) {
+  static Properties generateKafkaConfig(String zkConnectStr, int port, File logDir) {
     // Note: the log size properties below have been set so that we can have log rollovers
     // and log deletions in a minute.
     Properties prop = new Properties();
@@ -0,0 +1,69 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link KeyCoalescer}.
+ */
+public class KeyCoalescerTest {
+
+  @Test
+  public void testLastPerKey() {
+    KeyCoalescer coalescer = new KeyCoalescer();
+    String[] keys = { "a", "b", "a", "c", "b", "a" };
+    for (int i = 0; i < keys.length; i++) {
+      coalescer.put(keys[i], null, i);
+    }
+    Assert.assertEquals(3, coalescer.size());
+    boolean[] expected = { false, false, false, true, true, true };
+    for (int i = 0; i < keys.length; i++) {
+      Assert.assertEquals("Position " + i, expected[i], coalescer.isLast(keys[i], null, i));
+    }
+  }
+
+  @Test
+  public void testGroupsAreSeparate() {
+    KeyCoalescer coalescer = new KeyCoalescer();
+    coalescer.put("a", "t1", 0);
+    coalescer.put("a", "t2", 1);
+    coalescer.put("a", null, 2);
+    Assert.assertTrue(coalescer.isLast("a", "t1", 0));
+    Assert.assertTrue(coalescer.isLast("a", "t2", 1));
+    Assert.assertTrue(coalescer.isLast("a", null, 2));
+  }
+
+  @Test
+  public void testGrowAndClear() {
+    KeyCoalescer coalescer = new KeyCoalescer();
+    for (int i = 0; i < 10000; i++) {
+      coalescer.put(i % 1000, null, i);
+    }
+    Assert.assertEquals(1000, coalescer.size());
+    for (int i = 0; i < 10000; i++) {
+      Assert.assertEquals(i >= 9000, coalescer.isLast(i % 1000, null, i));
+    }
+
+    coalescer.clear();
+    Assert.assertEquals(0, coalescer.size());
+    coalescer.put(1, null, 5);
+    Assert.assertFalse(coalescer.isLast(1, null, 1));
+    Assert.assertTrue(coalescer.isLast(1, null, 5));
+  }
+}
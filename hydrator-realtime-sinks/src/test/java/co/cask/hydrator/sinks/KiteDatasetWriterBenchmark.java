@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import co.cask.cdap.api.data.format.StructuredRecord;
+import co.cask.cdap.api.data.schema.Schema;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link KiteDatasetWriter} throughput to a local file system dataset for increasing numbers
+ * of shards.
+ *
+ * <p>This is not part of the regular test run. Run it with {@code mvn test -Dtest=KiteDatasetWriterBenchmark},
+ * optionally setting {@code -Dbenchmark.records}, {@code -Dbenchmark.batch} and {@code -Dbenchmark.shards},
+ * a comma separated list of shard counts.</p>
+ */
+public class KiteDatasetWriterBenchmark {
+  private static final Logger LOG = LoggerFactory.getLogger(KiteDatasetWriterBenchmark.class);
+
+  private static final int RECORDS = Integer.getInteger("benchmark.records", 1000000);
+  private static final int BATCH = Integer.getInteger("benchmark.batch", 1000);
+  private static final String SHARDS = System.getProperty("benchmark.shards", "1,2,4,8");
+
+  private static final Schema INPUT = Schema.recordOf("input",
+                                                      Schema.Field.of("a", Schema.of(Schema.Type.LONG)),
+                                                      Schema.Field.of("b", Schema.of(Schema.Type.STRING)),
+                                                      Schema.Field.of("c", Schema.of(Schema.Type.INT)),
+                                                      Schema.Field.of("d", Schema.of(Schema.Type.DOUBLE)),
+                                                      Schema.Field.of("e", Schema.of(Schema.Type.BOOLEAN)));
+
+  @ClassRule
+  public static final TemporaryFolder TMP_FOLDER = new TemporaryFolder();
+
+  @Test
+  public void benchmarkShards() throws Exception {
+    List<StructuredRecord> batch = new ArrayList<StructuredRecord>(BATCH);
+    for (int i = 0; i < BATCH; i++) {
+      batch.add(StructuredRecord.builder(INPUT).set("a", (long) i).set("b", "record number " + i)
+                  .set("c", i).set("d", i * 1.5).set("e", i % 2 == 0).build());
+    }
+
+    StringBuilder report = new StringBuilder("\nshards    records/s\n");
+    for (String shards : SHARDS.split(",")) {
+      int numShards = Integer.parseInt(shards.trim());
+      String uri = "dataset:file:" + TMP_FOLDER.newFolder().getAbsolutePath() + "/bench";
+      KiteDatasetWriter.Config config = new KiteDatasetWriter.Config(uri).setSharding(numShards, null);
+      KiteDatasetWriter writer = new KiteDatasetWriter(config);
+      writer.initialize(new MockRealtimeContext());
+
+      // Warm up, which also creates the dataset.
+      writer.write(batch, null);
+
+      int batches = RECORDS / BATCH;
+      long start = System.nanoTime();
+      for (int i = 0; i < batches; i++) {
+        writer.write(batch, null);
+      }
+      // Waits for the shards to write and close their files.
+      writer.destroy();
+      long elapsed = System.nanoTime() - start;
+
+      double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+      report.append(String.format("%-9d %10.0f%n", numShards, batches * BATCH / seconds));
+    }
+    LOG.info(report.toString());
+  }
+}
@@ -6,21 +6,32 @@ import co.cask.cdap.api.data.schema.Schema;
 import co.cask.cdap.etl.api.realtime.RealtimeSink;
 import com.clearspring.analytics.util.Lists;
 import com.google.common.collect.Maps;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
 import org.junit.Test;
 import org.kitesdk.data.Dataset;
 import org.kitesdk.data.DatasetDescriptor;
 import org.kitesdk.data.DatasetReader;
 import org.kitesdk.data.DatasetWriter;
 import org.kitesdk.data.Datasets;
+import org.kitesdk.data.Formats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import parquet.hadoop.ParquetFileReader;
+import parquet.hadoop.metadata.BlockMetaData;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by nmotgi on 10/17/15.
@@ -88,7 +99,8 @@ public class KiteDatasetWriterTest {
     return output;
   }
 
-  private Map<String, Object> convertMap(Map<String, Object> map, org.apache.avro.Schema valueSchema) throws IOException {
+  private Map<String, Object> convertMap(Map<String, Object> map,
+                                         org.apache.avro.Schema valueSchema) throws IOException {
     Map<String, Object> converted = Maps.newHashMap();
     for (Map.Entry<String, Object> entry : map.entrySet()) {
       converted.put(entry.getKey(), convertField(entry.getValue(), valueSchema));
@@ -184,4 +196,314 @@ public class KiteDatasetWriterTest {
     kitewriter.destroy();
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testPartitionedWrite() throws Exception {
+    String uri = "dataset:file:/tmp/testPartitionedWrite";
+    Datasets.delete(uri);
+    // At most two partition files are open at once.
+    KiteDatasetWriter.Config config = new KiteDatasetWriter.Config(uri).setPartitioning("year(a),hash(c,4)", 2);
+    KiteDatasetWriter kitewriter = new KiteDatasetWriter(config);
+    kitewriter.configurePipeline(null);
+    kitewriter.initialize(new MockRealtimeContext());
+
+    // Records alternate between 2014 and 2015, and between the four hash buckets.
+    long[] years = { 1401580800000L, 1433116800000L };
+    List<StructuredRecord> input = Lists.newArrayList();
+    for (int i = 0; i < 80; i++) {
+      input.add(StructuredRecord.builder(INPUT).set("a", years[i % 2]).set("b", "record " + i).set("c", i)
+                  .set("d", i * 1.5).set("e", i % 2 == 0).build());
+    }
+    Assert.assertEquals(80, kitewriter.write(input, null));
+    kitewriter.destroy();
+
+    Dataset<GenericRecord> dataset = Datasets.load(uri, GenericRecord.class);
+    Assert.assertEquals("2", dataset.getDescriptor().getProperty("kite.writer.cache-size"));
+    File root = new File(dataset.getDescriptor().getLocation());
+    for (String year : new String[] { "year=2014", "year=2015" }) {
+      File yearDir = new File(root, year);
+      Assert.assertTrue(yearDir.isDirectory());
+      // Even values of c are written in 2014 and odd ones in 2015, so each year gets two buckets.
+      String[] buckets = yearDir.list();
+      Assert.assertEquals(2, buckets.length);
+      for (String bucket : buckets) {
+        Assert.assertTrue(bucket.startsWith("c_hash="));
+      }
+    }
+
+    // With only two open files, writers of the four partitions are closed and opened again as records
+    // alternate between them, leaving more files than partitions.
+    Assert.assertTrue(countDataFiles(root) > 4);
+    int count = 0;
+    DatasetReader<GenericRecord> reader = dataset.newReader();
+    try {
+      for (GenericRecord record : reader) {
+        count++;
+      }
+    } finally {
+      reader.close();
+    }
+    Assert.assertEquals(80, count);
+  }
+
+  @Test
+  public void testRollAndFlush() throws Exception {
+    String uri = "dataset:file:/tmp/testRollAndFlush";
+    Datasets.delete(uri);
+    // Files are rolled every 10 records and flushed on every write after the first millisecond.
+    KiteDatasetWriter.Config config = new KiteDatasetWriter.Config(uri).setRolling(10L, null, null, 1L);
+    KiteDatasetWriter kitewriter = new KiteDatasetWriter(config);
+    kitewriter.configurePipeline(null);
+    kitewriter.initialize(new MockRealtimeContext());
+
+    Assert.assertEquals(25, kitewriter.write(records(0, 25), null));
+    File root = new File(Datasets.load(uri, GenericRecord.class).getDescriptor().getLocation());
+    // Two rolled files, the last 5 records are in the open one.
+    Assert.assertEquals(2, countDataFiles(root));
+
+    // The open file is flushed by the next write, so its records can be read before it is closed.
+    TimeUnit.MILLISECONDS.sleep(10);
+    Assert.assertEquals(3, kitewriter.write(records(25, 3), null));
+    int flushed = 0;
+    for (File file : root.listFiles()) {
+      if (file.isFile() && file.getName().startsWith(".") && file.getName().endsWith(".tmp")) {
+        DataFileStream<GenericRecord> in = new DataFileStream<GenericRecord>(
+          new FileInputStream(file), new GenericDatumReader<GenericRecord>());
+        try {
+          while (in.hasNext()) {
+            in.next();
+            flushed++;
+          }
+        } finally {
+          in.close();
+        }
+      }
+    }
+    Assert.assertEquals(8, flushed);
+
+    kitewriter.destroy();
+    Assert.assertEquals(3, countDataFiles(root));
+    int count = 0;
+    DatasetReader<GenericRecord> reader = Datasets.load(uri, GenericRecord.class).newReader();
+    try {
+      for (GenericRecord record : reader) {
+        count++;
+      }
+    } finally {
+      reader.close();
+    }
+    Assert.assertEquals(28, count);
+  }
+
+  private static List<StructuredRecord> records(int start, int count) {
+    List<StructuredRecord> records = Lists.newArrayList();
+    for (int i = start; i < start + count; i++) {
+      records.add(StructuredRecord.builder(INPUT).set("a", (long) i).set("b", "record " + i).set("c", i)
+                    .set("d", i * 1.5).set("e", i % 2 == 0).build());
+    }
+    return records;
+  }
+
+  private static int countDataFiles(File dir) {
+    int count = 0;
+    for (File file : dir.listFiles()) {
+      if (file.getName().startsWith(".")) {
+        continue;
+      }
+      if (file.isDirectory()) {
+        count += countDataFiles(file);
+      } else if (file.getName().endsWith(".avro") || file.getName().endsWith(".parquet")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testAsyncWrite() throws Exception {
+    String uri = "dataset:file:/tmp/testAsyncWrite";
+    Datasets.delete(uri);
+    // A small buffer, so that the sink waits for the background thread to catch up.
+    KiteDatasetWriter.Config config = new KiteDatasetWriter.Config(uri).setAsync("TRUE", 16);
+    KiteDatasetWriter kitewriter = new KiteDatasetWriter(config);
+    kitewriter.configurePipeline(null);
+    kitewriter.initialize(new MockRealtimeContext());
+
+    Assert.assertEquals(1000, kitewriter.write(records(0, 1000), null));
+    // The background thread waits while there are no records, and is woken up by the next write.
+    TimeUnit.MILLISECONDS.sleep(100);
+    Assert.assertEquals(10, kitewriter.write(records(1000, 10), null));
+    // Records still in the buffer are written by the time the sink is destroyed.
+    kitewriter.destroy();
+
+    List<Long> ids = Lists.newArrayList();
+    DatasetReader<GenericRecord> reader = Datasets.load(uri, GenericRecord.class).newReader();
+    try {
+      for (GenericRecord record : reader) {
+        ids.add((Long) record.get("a"));
+      }
+    } finally {
+      reader.close();
+    }
+    // A single background writer keeps the order of the records.
+    Assert.assertEquals(1010, ids.size());
+    for (int i = 0; i < ids.size(); i++) {
+      Assert.assertEquals(i, ids.get(i).longValue());
+    }
+  }
+
+  @Test
+  public void testShardedWrite() throws Exception {
+    String uri = "dataset:file:/tmp/testShardedWrite";
+    Datasets.delete(uri);
+    KiteDatasetWriter.Config config = new KiteDatasetWriter.Config(uri).setSharding(3, "c");
+    RealtimeSink<StructuredRecord> kitewriter = new KiteDatasetWriter(config);
+    kitewriter.initialize(new MockRealtimeContext());
+    List<StructuredRecord> input = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      input.add(StructuredRecord.builder(INPUT).set("a", (long) i).set("b", "record " + i).set("c", i % 7)
+                  .set("d", i * 1.5).set("e", i % 2 == 0).build());
+    }
+    Assert.assertEquals(100, kitewriter.write(input, null));
+    // Records are written by the time the sink is destroyed.
+    kitewriter.destroy();
+
+    int count = 0;
+    DatasetReader<GenericRecord> reader = Datasets.load(uri, GenericRecord.class).newReader();
+    try {
+      for (GenericRecord record : reader) {
+        count++;
+      }
+    } finally {
+      reader.close();
+    }
+    Assert.assertEquals(100, count);
+  }
+
+  @Test
+  public void testSchemaChange() throws Exception {
+    String uri = "dataset:file:/tmp/testSchemaChange";
+    Datasets.delete(uri);
+    Schema added = Schema.recordOf("input",
+                                   Schema.Field.of("a", Schema.of(Schema.Type.LONG)),
+                                   Schema.Field.of("b", Schema.of(Schema.Type.STRING)),
+                                   Schema.Field.of("c", Schema.of(Schema.Type.INT)),
+                                   Schema.Field.of("d", Schema.of(Schema.Type.DOUBLE)),
+                                   Schema.Field.of("e", Schema.of(Schema.Type.BOOLEAN)),
+                                   Schema.Field.of("f", Schema.unionOf(Schema.of(Schema.Type.NULL),
+                                                                       Schema.of(Schema.Type.STRING))));
+    // A schema without a field of the dataset doesn't replace the dataset schema.
+    Schema replaced = Schema.recordOf("input",
+                                      Schema.Field.of("a", Schema.of(Schema.Type.LONG)),
+                                      Schema.Field.of("b", Schema.of(Schema.Type.STRING)),
+                                      Schema.Field.of("c", Schema.of(Schema.Type.INT)),
+                                      Schema.Field.of("d", Schema.of(Schema.Type.DOUBLE)),
+                                      Schema.Field.of("e", Schema.of(Schema.Type.BOOLEAN)),
+                                      Schema.Field.of("g", Schema.unionOf(Schema.of(Schema.Type.NULL),
+                                                                          Schema.of(Schema.Type.STRING))));
+    KiteDatasetWriter kitewriter = new KiteDatasetWriter(new KiteDatasetWriter.Config(uri));
+    kitewriter.initialize(new MockRealtimeContext());
+
+    // Records of the old schema after the new one are projected to the new schema.
+    List<StructuredRecord> input = Lists.newArrayList();
+    input.add(StructuredRecord.builder(INPUT).set("a", 1L).set("b", "first").set("c", 1).set("d", 12.34)
+                .set("e", false).build());
+    input.add(StructuredRecord.builder(added).set("a", 2L).set("b", "second").set("c", 2).set("d", 13.34)
+                .set("e", true).set("f", "new").build());
+    input.add(StructuredRecord.builder(INPUT).set("a", 3L).set("b", "third").set("c", 3).set("d", 14.34)
+                .set("e", false).build());
+    input.add(StructuredRecord.builder(replaced).set("a", 4L).set("b", "fourth").set("c", 4).set("d", 15.34)
+                .set("e", true).set("g", "dropped").build());
+    Assert.assertEquals(4, kitewriter.write(input, null));
+    kitewriter.destroy();
+
+    Dataset<GenericRecord> dataset = Datasets.load(uri, GenericRecord.class);
+    org.apache.avro.Schema datasetSchema = dataset.getDescriptor().getSchema();
+    Assert.assertNotNull(datasetSchema.getField("f"));
+    Assert.assertNull(datasetSchema.getField("g"));
+    // The union is kept in the order of the record schema.
+    Assert.assertEquals(org.apache.avro.Schema.Type.NULL,
+                        datasetSchema.getField("f").schema().getTypes().get(0).getType());
+    Map<Long, Object> values = Maps.newHashMap();
+    DatasetReader<GenericRecord> reader = dataset.newReader();
+    try {
+      for (GenericRecord record : reader) {
+        values.put((Long) record.get("a"), record.get("f"));
+      }
+    } finally {
+      reader.close();
+    }
+    Assert.assertEquals(4, values.size());
+    Assert.assertNull(values.get(1L));
+    Assert.assertEquals("new", values.get(2L).toString());
+    Assert.assertNull(values.get(3L));
+    Assert.assertNull(values.get(4L));
+  }
+
+  @Test
+  public void testParquet() throws Exception {
+    String uri = "dataset:file:/tmp/testParquet";
+    Datasets.delete(uri);
+    // Row groups small enough for the records to span several of them.
+    long rowGroupBytes = 64L * 1024;
+    KiteDatasetWriter.Config config = new KiteDatasetWriter.Config(uri).setFormat("PARQUET", "SNAPPY")
+      .setParquet(rowGroupBytes, 8L * 1024, null);
+    KiteDatasetWriter kitewriter = new KiteDatasetWriter(config);
+    kitewriter.configurePipeline(null);
+    kitewriter.initialize(new MockRealtimeContext());
+    List<StructuredRecord> input = Lists.newArrayList();
+    for (int i = 0; i < 20000; i++) {
+      input.add(StructuredRecord.builder(INPUT).set("a", (long) i).set("b", "record " + i).set("c", i)
+                  .set("d", i * 1.5).set("e", i % 2 == 0).build());
+    }
+    kitewriter.write(input, null);
+    kitewriter.destroy();
+
+    Dataset<GenericRecord> dataset = Datasets.load(uri, GenericRecord.class);
+    Assert.assertEquals(Formats.PARQUET, dataset.getDescriptor().getFormat());
+    Assert.assertEquals(String.valueOf(rowGroupBytes), dataset.getDescriptor().getProperty("parquet.block.size"));
+
+    // The writer cuts row groups at the configured size, checking it every so many records, so a row group
+    // may go a little over it.
+    List<BlockMetaData> rowGroups = Lists.newArrayList();
+    Configuration conf = new Configuration();
+    for (File file : new File("/tmp/testParquet").listFiles()) {
+      if (file.getName().endsWith(".parquet") && !file.getName().startsWith(".")) {
+        rowGroups.addAll(ParquetFileReader.readFooter(conf, new Path(file.getAbsolutePath())).getBlocks());
+      }
+    }
+    Assert.assertTrue(rowGroups.size() > 1);
+    long rows = 0;
+    for (BlockMetaData rowGroup : rowGroups) {
+      Assert.assertTrue(rowGroup.getTotalByteSize() < rowGroupBytes * 3 / 2);
+      rows += rowGroup.getRowCount();
+    }
+    Assert.assertEquals(20000, rows);
+
+    int count = 0;
+    DatasetReader<GenericRecord> reader = dataset.newReader();
+    try {
+      for (GenericRecord record : reader) {
+        count++;
+      }
+    } finally {
+      reader.close();
+    }
+    Assert.assertEquals(20000, count);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParquetCompression() {
+    // Parquet files can't be compressed with BZIP2.
+    KiteDatasetWriter.Config config = new KiteDatasetWriter.Config("dataset:file:/tmp/testParquetCompression")
+      .setFormat("PARQUET", "BZIP2");
+    new KiteDatasetWriter(config).configurePipeline(null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParquetMemoryBound() {
+    // 8 shards with 10 open partition files each, buffering 128MB row groups, exceed 1GB.
+    KiteDatasetWriter.Config config = new KiteDatasetWriter.Config("dataset:file:/tmp/testParquetMemoryBound")
+      .setFormat("PARQUET", null).setPartitioning("hash(a,16)", null).setSharding(8, null);
+    new KiteDatasetWriter(config).configurePipeline(null);
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.base.Charsets;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link MessageChunks}.
+ */
+public class MessageChunksTest {
+
+  @Test
+  public void testSplitAndAssemble() {
+    byte[] value = new byte[1000];
+    new Random(0).nextBytes(value);
+    List<byte[]> chunks = MessageChunks.split(value, 120, 42L);
+    // 100 bytes of data per chunk.
+    Assert.assertEquals(10, chunks.size());
+    for (byte[] chunk : chunks) {
+      Assert.assertTrue(chunk.length <= 120);
+      Assert.assertTrue(MessageChunks.isChunk(chunk));
+    }
+
+    // Chunks may arrive in any order and interleaved with other messages.
+    Collections.reverse(chunks);
+    MessageChunks.Assembler assembler = new MessageChunks.Assembler(10);
+    byte[] plain = "{\"a\":1}".getBytes(Charsets.UTF_8);
+    for (int i = 0; i < chunks.size() - 1; i++) {
+      Assert.assertNull(assembler.add(chunks.get(i)));
+      Assert.assertSame(plain, assembler.add(plain));
+    }
+    Assert.assertEquals(1, assembler.getIncomplete());
+    Assert.assertArrayEquals(value, assembler.add(chunks.get(chunks.size() - 1)));
+    Assert.assertEquals(0, assembler.getIncomplete());
+  }
+
+  @Test
+  public void testIncompleteLimit() {
+    MessageChunks.Assembler assembler = new MessageChunks.Assembler(2);
+    for (long id = 0; id < 5; id++) {
+      Assert.assertNull(assembler.add(MessageChunks.split(new byte[50], 40, id).get(0)));
+    }
+    Assert.assertEquals(2, assembler.getIncomplete());
+  }
+
+  @Test
+  public void testInvalidChunks() {
+    MessageChunks.Assembler assembler = new MessageChunks.Assembler(10);
+    List<byte[]> chunks = MessageChunks.split(new byte[100], 40, 7L);
+    Assert.assertNull(assembler.add(chunks.get(0)));
+
+    // Index past the number of chunks.
+    assertInvalid(assembler, chunk(7L, 5, 5));
+    assertInvalid(assembler, chunk(7L, -1, 5));
+    assertInvalid(assembler, chunk(8L, 0, 0));
+    // Same message id with a different number of chunks.
+    assertInvalid(assembler, chunk(7L, 1, 2));
+
+    // Invalid chunks are not kept, the message still completes.
+    for (int i = 1; i < chunks.size(); i++) {
+      assembler.add(chunks.get(i));
+    }
+    Assert.assertEquals(0, assembler.getIncomplete());
+  }
+
+  private static byte[] chunk(long messageId, int index, int count) {
+    byte[] chunk = MessageChunks.split(new byte[10], 40, messageId).get(0);
+    ByteBuffer.wrap(chunk).putInt(12, index).putInt(16, count);
+    return chunk;
+  }
+
+  private static void assertInvalid(MessageChunks.Assembler assembler, byte[] chunk) {
+    try {
+      assembler.add(chunk);
+      Assert.fail("Invalid chunk should be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.base.Charsets;
+import org.apache.kafka.common.utils.Utils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for {@link MessagePartitioner}.
+ */
+public class MessagePartitionerTest {
+
+  @Test
+  public void testModuloIsNeverNegative() {
+    MessagePartitioner partitioner = MessagePartitioner.create("MODULO");
+    Assert.assertEquals(3, partitioner.partition(7, 4));
+    Assert.assertEquals(1, partitioner.partition(-7, 4));
+    Assert.assertEquals(1, partitioner.partition(-7L, 4));
+    Assert.assertEquals(0, partitioner.partition(Integer.MIN_VALUE, 4));
+    Assert.assertEquals(0, partitioner.partition(4));
+    // Strings are placed by their hash code, as the sink always placed them.
+    Assert.assertEquals(Math.abs("key".hashCode() % 4), partitioner.partition("key", 4));
+  }
+
+  @Test
+  public void testMurmur2MatchesKafka() {
+    MessagePartitioner partitioner = MessagePartitioner.create("murmur2");
+    int[] intKeys = { 0, 1, -1, 42, Integer.MIN_VALUE, Integer.MAX_VALUE };
+    for (int key : intKeys) {
+      byte[] bytes = ByteBuffer.allocate(4).putInt(key).array();
+      Assert.assertEquals(Utils.abs(Utils.murmur2(bytes)) % 7, partitioner.partition(key, 7));
+    }
+    long[] longKeys = { 0L, 1L, -1L, 1234567890123L, Long.MIN_VALUE, Long.MAX_VALUE };
+    for (long key : longKeys) {
+      byte[] bytes = ByteBuffer.allocate(8).putLong(key).array();
+      Assert.assertEquals(Utils.abs(Utils.murmur2(bytes)) % 7, partitioner.partition(key, 7));
+    }
+    byte[] bytes = "key".getBytes(Charsets.UTF_8);
+    Assert.assertEquals(Utils.abs(Utils.murmur2(bytes)) % 7, partitioner.partition("key", 7));
+  }
+
+  @Test
+  public void testConsistentHashMovesFewKeys() {
+    MessagePartitioner partitioner = MessagePartitioner.create("consistent");
+    int keys = 10000;
+    int[] before = new int[keys];
+    for (int key = 0; key < keys; key++) {
+      before[key] = partitioner.partition(key, 8);
+      Assert.assertTrue(before[key] >= 0 && before[key] < 8);
+    }
+
+    // Going from 8 to 9 partitions should move roughly a ninth of the keys, and only to the new partition.
+    int moved = 0;
+    for (int key = 0; key < keys; key++) {
+      int after = partitioner.partition(key, 9);
+      if (after != before[key]) {
+        Assert.assertEquals(8, after);
+        moved++;
+      }
+    }
+    Assert.assertTrue("Moved " + moved + " keys", moved > 0 && moved < keys / 5);
+  }
+
+  @Test
+  public void testRoundRobin() {
+    MessagePartitioner partitioner = MessagePartitioner.create("roundrobin");
+    int[] counts = new int[3];
+    for (int i = 0; i < 30; i++) {
+      counts[partitioner.partition(5, 3)]++;
+    }
+    Assert.assertArrayEquals(new int[] { 10, 10, 10 }, counts);
+  }
+
+  @Test
+  public void testStickyPerBatch() {
+    MessagePartitioner partitioner = MessagePartitioner.create("sticky");
+    partitioner.onNewBatch();
+    int first = partitioner.partition(1, 4);
+    Assert.assertEquals(first, partitioner.partition(2L, 4));
+    Assert.assertEquals(first, partitioner.partition(new byte[] { 1, 2, 3 }, 4));
+    Assert.assertEquals(first, partitioner.partition(4));
+
+    partitioner.onNewBatch();
+    Assert.assertEquals((first + 1) % 4, partitioner.partition(1, 4));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownPartitioner() {
+    MessagePartitioner.create("no.such.Partitioner");
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for {@link MirrorCluster}.
+ */
+public class MirrorClusterTest {
+
+  @Test
+  public void testPartitionsAndLag() {
+    StubProducer producer = new StubProducer(4);
+    MirrorCluster mirror = new MirrorCluster("mirror1", producer, Long.MAX_VALUE / 2,
+                                             MoreExecutors.sameThreadExecutor());
+
+    // Partitions that exist on the mirror are kept, others wrap around.
+    mirror.send(new ProducerRecord<String, byte[]>("t", 2, "k", new byte[1]));
+    mirror.send(new ProducerRecord<String, byte[]>("t", 6, "k", new byte[1]));
+    Assert.assertEquals(2, producer.sent.get(0).partition().intValue());
+    Assert.assertEquals(2, producer.sent.get(1).partition().intValue());
+    Assert.assertEquals(2, mirror.getInFlight());
+
+    // Acknowledged and failed sends are no longer in flight. Only acks have a latency.
+    producer.callbacks.get(0).onCompletion(new RecordMetadata(new TopicPartition("t", 2), 0, 0), null);
+    producer.callbacks.get(1).onCompletion(null, new TimeoutException("timeout"));
+    Assert.assertEquals(0, mirror.getInFlight());
+    Assert.assertEquals(1, mirror.drainFailures());
+    Assert.assertEquals(0, mirror.drainFailures());
+    Assert.assertEquals(1, mirror.drainLatency().getCount());
+  }
+
+  private static final class StubProducer implements Producer<String, byte[]> {
+    private final int partitions;
+    private final List<ProducerRecord<String, byte[]>> sent = Lists.newArrayList();
+    private final List<Callback> callbacks = Lists.newArrayList();
+
+    StubProducer(int partitions) {
+      this.partitions = partitions;
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, byte[]> record) {
+      return send(record, null);
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, byte[]> record, Callback callback) {
+      sent.add(record);
+      callbacks.add(callback);
+      return null;
+    }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic) {
+      List<PartitionInfo> infos = new ArrayList<PartitionInfo>(partitions);
+      for (int i = 0; i < partitions; i++) {
+        infos.add(new PartitionInfo(topic, i, null, null, null));
+      }
+      return infos;
+    }
+
+    @Override
+    public Map<MetricName, ? extends Metric> metrics() {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public void close() {
+      // no-op
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.errors.UnknownTopicOrPartitionException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for {@link PartitionCountCache}.
+ */
+public class PartitionCountCacheTest {
+
+  @Test
+  public void testRefreshOnMetadataError() throws Exception {
+    StubProducer producer = new StubProducer(4);
+    PartitionCountCache cache = new PartitionCountCache(producer, Long.MAX_VALUE / 2,
+                                                        MoreExecutors.sameThreadExecutor());
+    Assert.assertEquals(4, cache.get("a"));
+    Assert.assertEquals(1, producer.lookups);
+
+    // Cached counts are served without going to the producer.
+    producer.partitions = 8;
+    Assert.assertEquals(4, cache.get("a"));
+    Assert.assertEquals(1, producer.lookups);
+
+    // Errors unrelated to metadata don't invalidate the cache.
+    cache.invalidate(new TimeoutException("timeout"));
+    Assert.assertEquals(4, cache.get("a"));
+
+    cache.invalidate(new UnknownTopicOrPartitionException("unknown"));
+    Assert.assertEquals(8, cache.get("a"));
+    Assert.assertEquals(2, producer.lookups);
+  }
+
+  @Test
+  public void testRefreshOnInterval() throws Exception {
+    StubProducer producer = new StubProducer(2);
+    PartitionCountCache cache = new PartitionCountCache(producer, 0, MoreExecutors.sameThreadExecutor());
+    Assert.assertEquals(2, cache.get("a"));
+    producer.partitions = 3;
+    Assert.assertEquals(3, cache.get("a"));
+    Assert.assertEquals(3, cache.get("b"));
+  }
+
+  @Test
+  public void testRefreshInBackground() throws Exception {
+    StubProducer producer = new StubProducer(2);
+    final List<Runnable> scheduled = new ArrayList<Runnable>();
+    PartitionCountCache cache = new PartitionCountCache(producer, Long.MAX_VALUE / 2, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        scheduled.add(command);
+      }
+    });
+    Assert.assertEquals(2, cache.get("a"));
+
+    // The reload is scheduled once, and the cached count is served until it has run.
+    producer.partitions = 3;
+    cache.invalidate(new UnknownTopicOrPartitionException("unknown"));
+    Assert.assertEquals(2, cache.get("a"));
+    cache.invalidate(new UnknownTopicOrPartitionException("unknown"));
+    Assert.assertEquals(2, cache.get("a"));
+    Assert.assertEquals(1, scheduled.size());
+    scheduled.get(0).run();
+    Assert.assertEquals(3, cache.get("a"));
+  }
+
+  @Test
+  public void testRefreshFailureKeepsCounts() throws Exception {
+    StubProducer producer = new StubProducer(4);
+    PartitionCountCache cache = new PartitionCountCache(producer, Long.MAX_VALUE / 2,
+                                                        MoreExecutors.sameThreadExecutor());
+    Assert.assertEquals(4, cache.get("a"));
+
+    // Metadata is unavailable, the cached count is kept.
+    producer.failure = new TimeoutException("metadata");
+    cache.invalidate(new UnknownTopicOrPartitionException("unknown"));
+    Assert.assertEquals(4, cache.get("a"));
+
+    // And reloaded once metadata is back.
+    producer.failure = null;
+    producer.partitions = 8;
+    cache.invalidate(new UnknownTopicOrPartitionException("unknown"));
+    Assert.assertEquals(8, cache.get("a"));
+  }
+
+  @Test
+  public void testUnknownTopic() throws Exception {
+    StubProducer producer = new StubProducer(4);
+    final List<Runnable> scheduled = new ArrayList<Runnable>();
+    PartitionCountCache cache = new PartitionCountCache(producer, Long.MAX_VALUE / 2, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        scheduled.add(command);
+      }
+    });
+
+    // A failed first lookup is not retried on the write path.
+    producer.failure = new TimeoutException("metadata");
+    Assert.assertEquals(PartitionCountCache.UNKNOWN, cache.get("a"));
+    Assert.assertEquals(PartitionCountCache.UNKNOWN, cache.get("a"));
+    Assert.assertEquals(1, producer.lookups);
+
+    // The reload scheduled by the failure looks it up again.
+    producer.failure = null;
+    Assert.assertEquals(1, scheduled.size());
+    scheduled.get(0).run();
+    Assert.assertEquals(4, cache.get("a"));
+  }
+
+  /**
+   * Producer that only answers partition lookups.
+   */
+  private static final class StubProducer implements Producer<String, String> {
+    private volatile int partitions;
+    private volatile RuntimeException failure;
+    private int lookups;
+
+    StubProducer(int partitions) {
+      this.partitions = partitions;
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, String> record) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, String> record, Callback callback) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic) {
+      lookups++;
+      if (failure != null) {
+        throw failure;
+      }
+      List<PartitionInfo> infos = new ArrayList<PartitionInfo>(partitions);
+      for (int i = 0; i < partitions; i++) {
+        infos.add(new PartitionInfo(topic, i, null, null, null));
+      }
+      return infos;
+    }
+
+    @Override
+    public Map<MetricName, ? extends Metric> metrics() {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public void close() {
+      // no-op
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitesdk.data.PartitionStrategy;
+
+/**
+ * Tests for {@link PartitionStrategies}.
+ */
+public class PartitionStrategiesTest {
+
+  @Test
+  public void testParse() {
+    PartitionStrategy expected = new PartitionStrategy.Builder()
+      .year("ts").month("ts").day("ts").hour("ts").hash("id", 16).identity("type").build();
+    Assert.assertEquals(expected,
+                        PartitionStrategies.parse("year(ts),month(ts),day(ts),hour(ts),hash(id,16),identity(type)"));
+    Assert.assertEquals(expected, PartitionStrategies.parse(" year(ts), month(ts) ,day(ts),HOUR(ts), " +
+                                                              "hash(id, 16),identity(type)"));
+    Assert.assertEquals(expected, PartitionStrategies.parse(expected.toString(true)));
+  }
+
+  @Test
+  public void testInvalid() {
+    String[] invalid = { "", "year", "year(ts) month(ts)", "year(ts),,month(ts)", "hash(id)", "hash(id,x)",
+      "year(ts,1)", "week(ts)", "year(ts)," };
+    for (String strategy : invalid) {
+      try {
+        PartitionStrategies.parse(strategy);
+        Assert.fail("Expected '" + strategy + "' to be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.base.Function;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for {@link ProducerPool}.
+ */
+public class ProducerPoolTest {
+
+  @Test
+  public void testShareAndRelease() {
+    ProducerPool pool = new ProducerPool(new Function<Map<String, String>, Producer<String, byte[]>>() {
+      @Override
+      public Producer<String, byte[]> apply(Map<String, String> properties) {
+        return new StubProducer();
+      }
+    });
+
+    Properties props = new Properties();
+    props.put("bootstrap.servers", "localhost:9092");
+    Properties same = new Properties();
+    same.putAll(props);
+    Properties other = new Properties();
+    other.put("bootstrap.servers", "localhost:9093");
+
+    // Same properties share a producer, different ones don't.
+    Producer<String, byte[]> first = pool.borrow(props);
+    Producer<String, byte[]> second = pool.borrow(same);
+    Producer<String, byte[]> third = pool.borrow(other);
+    Assert.assertSame(first, second);
+    Assert.assertNotSame(first, third);
+    Assert.assertEquals(2, pool.size());
+
+    // The producer is closed only when the last borrower returns it.
+    pool.release(first);
+    Assert.assertFalse(((StubProducer) first).closed);
+    pool.release(second);
+    Assert.assertTrue(((StubProducer) first).closed);
+    Assert.assertEquals(1, pool.size());
+
+    // Borrowing again after the close creates a new producer.
+    Assert.assertNotSame(first, pool.borrow(props));
+    pool.release(third);
+    Assert.assertTrue(((StubProducer) third).closed);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReleaseUnknown() {
+    new ProducerPool(null).release(new StubProducer());
+  }
+
+  private static final class StubProducer implements Producer<String, byte[]> {
+    private boolean closed;
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, byte[]> record) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, byte[]> record, Callback callback) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Map<MetricName, ? extends Metric> metrics() {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RecordProjection}.
+ */
+public class RecordProjectionTest {
+
+  @Test
+  public void testProject() {
+    Schema innerV1 = SchemaBuilder.record("inner").fields().requiredInt("x").endRecord();
+    Schema innerV2 = SchemaBuilder.record("inner").fields().requiredLong("x")
+      .name("y").type().stringType().stringDefault("none").endRecord();
+    Schema v1 = SchemaBuilder.record("r").fields()
+      .requiredInt("a").requiredString("dropped").name("inner").type(innerV1).noDefault()
+      .endRecord();
+    Schema v2 = SchemaBuilder.record("r").fields()
+      .requiredDouble("a").name("inner").type(innerV2).noDefault()
+      .optionalString("added")
+      .name("count").type().intType().intDefault(7)
+      .endRecord();
+
+    GenericRecord inner = new GenericData.Record(innerV1);
+    inner.put("x", 3);
+    GenericRecord record = new GenericData.Record(v1);
+    record.put("a", 1);
+    record.put("dropped", "gone");
+    record.put("inner", inner);
+
+    GenericRecord projected = new RecordProjection(v1, v2).project(record);
+    Assert.assertSame(v2, projected.getSchema());
+    Assert.assertTrue(GenericData.get().validate(v2, projected));
+    Assert.assertEquals(1.0d, projected.get("a"));
+    Assert.assertNull(projected.get("added"));
+    Assert.assertEquals(7, projected.get("count"));
+
+    GenericRecord projectedInner = (GenericRecord) projected.get("inner");
+    Assert.assertEquals(3L, projectedInner.get("x"));
+    Assert.assertEquals("none", projectedInner.get("y").toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingFieldWithoutDefault() {
+    Schema v1 = SchemaBuilder.record("r").fields().requiredInt("a").endRecord();
+    Schema v2 = SchemaBuilder.record("r").fields().requiredInt("a").requiredInt("b").endRecord();
+    new RecordProjection(v1, v2);
+  }
+}
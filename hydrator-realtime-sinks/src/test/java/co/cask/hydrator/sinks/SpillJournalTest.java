@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.base.Charsets;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Tests for {@link SpillJournal}.
+ */
+public class SpillJournalTest {
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testAppendAndConsumeInOrder() throws Exception {
+    // Small segments, so that messages span several of them.
+    SpillJournal journal = new SpillJournal(tmpFolder.newFolder(), 1024 * 1024, 256);
+    for (int i = 0; i < 100; i++) {
+      // Every fifth message leaves the partition to the producer.
+      Assert.assertTrue(journal.append("topic" + (i % 3), i % 5 == 4 ? null : Integer.valueOf(i % 4),
+                                       i % 2 == 0 ? null : "key" + i,
+                                       ("body" + i).getBytes(Charsets.UTF_8)));
+    }
+    Assert.assertEquals(100, journal.size());
+
+    int next = 0;
+    while (!journal.isEmpty()) {
+      List<SpillJournal.Entry> entries = journal.peek(7);
+      for (SpillJournal.Entry entry : entries) {
+        Assert.assertEquals("topic" + (next % 3), entry.topic);
+        Assert.assertEquals(next % 5 == 4 ? null : Integer.valueOf(next % 4), entry.partition);
+        Assert.assertEquals(next % 2 == 0 ? null : "key" + next, entry.key);
+        Assert.assertEquals("body" + next, new String(entry.body, Charsets.UTF_8));
+        next++;
+      }
+      journal.consume(entries.size());
+    }
+    Assert.assertEquals(100, next);
+    journal.close();
+  }
+
+  @Test
+  public void testRecover() throws Exception {
+    File dir = tmpFolder.newFolder();
+    SpillJournal journal = new SpillJournal(dir, 1024 * 1024, 256);
+    for (int i = 0; i < 50; i++) {
+      journal.append("topic", 0, "key", ("body" + i).getBytes(Charsets.UTF_8));
+    }
+    journal.consume(20);
+    journal.close();
+
+    // Consumed messages are not read back after a restart, and new appends go behind the recovered ones.
+    journal = new SpillJournal(dir, 1024 * 1024, 256);
+    Assert.assertEquals(30, journal.size());
+    journal.append("topic", 0, "key", "body50".getBytes(Charsets.UTF_8));
+    List<SpillJournal.Entry> entries = journal.peek(100);
+    Assert.assertEquals(31, entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      Assert.assertEquals("body" + (i + 20), new String(entries.get(i).body, Charsets.UTF_8));
+    }
+    journal.consume(31);
+    Assert.assertTrue(journal.isEmpty());
+    journal.close();
+  }
+
+  @Test
+  public void testSizeCap() throws Exception {
+    SpillJournal journal = new SpillJournal(tmpFolder.newFolder(), 1024, 512);
+    byte[] body = new byte[100];
+    int appended = 0;
+    while (journal.append("topic", 0, null, body)) {
+      appended++;
+    }
+    // Two segments of 512 bytes, each holding four messages of 121 bytes.
+    Assert.assertEquals(8, appended);
+
+    // Consuming a full segment makes room again.
+    journal.consume(4);
+    Assert.assertTrue(journal.append("topic", 0, null, body));
+    journal.close();
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests for {@link SpscRingBuffer}.
+ */
+public class SpscRingBufferTest {
+
+  @Test
+  public void testBounded() {
+    SpscRingBuffer<Integer> buffer = new SpscRingBuffer<Integer>(3);
+    Assert.assertEquals(4, buffer.capacity());
+    for (int i = 0; i < 4; i++) {
+      Assert.assertTrue(buffer.offer(i));
+    }
+    Assert.assertFalse(buffer.offer(4));
+
+    Assert.assertEquals(0, buffer.poll().intValue());
+    Assert.assertTrue(buffer.offer(4));
+
+    List<Integer> drained = Lists.newArrayList();
+    Assert.assertEquals(3, buffer.drainTo(drained, 3));
+    Assert.assertEquals(Lists.newArrayList(1, 2, 3), drained);
+    Assert.assertEquals(1, buffer.size());
+    Assert.assertEquals(4, buffer.poll().intValue());
+    Assert.assertNull(buffer.poll());
+  }
+
+  @Test
+  public void testConcurrentHandOff() throws Exception {
+    final SpscRingBuffer<Integer> buffer = new SpscRingBuffer<Integer>(16);
+    final int count = 20000;
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          while (!buffer.offer(i)) {
+            Thread.yield();
+          }
+        }
+      }
+    };
+    producer.start();
+
+    List<Integer> drained = Lists.newArrayList();
+    int expected = 0;
+    while (expected < count) {
+      drained.clear();
+      if (buffer.drainTo(drained, 7) == 0) {
+        Thread.yield();
+      }
+      for (Integer value : drained) {
+        Assert.assertEquals(expected++, value.intValue());
+      }
+    }
+    producer.join();
+    Assert.assertEquals(0, buffer.size());
+  }
+}
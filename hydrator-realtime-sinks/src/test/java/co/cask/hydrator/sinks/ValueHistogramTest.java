@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ValueHistogram}.
+ */
+public class ValueHistogramTest {
+
+  @Test
+  public void testBuckets() {
+    long[] values = { 0, 1, 7, 8, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE };
+    for (long value : values) {
+      int bucket = ValueHistogram.bucketOf(value);
+      long upper = ValueHistogram.upperBoundOf(bucket);
+      Assert.assertTrue(value + " above bucket bound " + upper, value <= upper);
+      // Buckets are never wider than an eighth of their lower bound.
+      Assert.assertTrue(value + " too far from bucket bound " + upper, upper - value <= value / 8);
+      if (bucket > 0) {
+        Assert.assertTrue(value > ValueHistogram.upperBoundOf(bucket - 1));
+      }
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    ValueHistogram histogram = new ValueHistogram();
+    Assert.assertEquals(0, histogram.drain().getPercentile(99));
+
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    ValueHistogram.Snapshot snapshot = histogram.drain();
+    Assert.assertEquals(1000, snapshot.getCount());
+    Assert.assertTrue(snapshot.getPercentile(50) >= 500 && snapshot.getPercentile(50) <= 500 * 9 / 8);
+    Assert.assertTrue(snapshot.getPercentile(99) >= 990 && snapshot.getPercentile(99) <= 990 * 9 / 8);
+    Assert.assertTrue(snapshot.getMax() >= 1000 && snapshot.getMax() <= 1000 * 9 / 8);
+
+    // Draining resets the histogram.
+    Assert.assertEquals(0, histogram.drain().getCount());
+  }
+
+  @Test
+  public void testConcurrentRecord() throws Exception {
+    final ValueHistogram histogram = new ValueHistogram();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            histogram.record(j);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(40000, histogram.drain().getCount());
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.hydrator.sinks;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for {@link WriterRollPolicy}.
+ */
+public class WriterRollPolicyTest {
+
+  @Test
+  public void testRecordLimit() {
+    WriterRollPolicy policy = new WriterRollPolicy(2L, null, null);
+    policy.opened(0);
+    policy.written("a");
+    Assert.assertFalse(policy.shouldRoll(Long.MAX_VALUE));
+    Assert.assertEquals(Long.MAX_VALUE, policy.rollDeadline());
+    policy.written("b");
+    Assert.assertTrue(policy.isFull());
+
+    policy.opened(10);
+    Assert.assertFalse(policy.isFull());
+    Assert.assertEquals(0, policy.getRecords());
+  }
+
+  @Test
+  public void testByteLimit() {
+    WriterRollPolicy policy = new WriterRollPolicy(null, 1000L, null);
+    policy.opened(0);
+    policy.written(ByteBuffer.allocate(500));
+    Assert.assertFalse(policy.isFull());
+    policy.written(ByteBuffer.allocate(500));
+    Assert.assertTrue(policy.isFull());
+  }
+
+  @Test
+  public void testOpenTime() {
+    WriterRollPolicy policy = new WriterRollPolicy(null, null, 100L);
+    policy.opened(1000);
+    // Empty files are not rolled.
+    Assert.assertFalse(policy.shouldRoll(5000));
+    Assert.assertEquals(Long.MAX_VALUE, policy.rollDeadline());
+    policy.written("a");
+    Assert.assertEquals(1100, policy.rollDeadline());
+    Assert.assertFalse(policy.shouldRoll(1099));
+    Assert.assertTrue(policy.shouldRoll(1100));
+    Assert.assertFalse(policy.isFull());
+  }
+
+  @Test
+  public void testSizeOf() {
+    Schema schema = SchemaBuilder.record("r").fields()
+      .requiredLong("a").requiredString("b").name("c").type().array().items().intType().noDefault()
+      .endRecord();
+    GenericRecord record = new GenericData.Record(schema);
+    record.put("a", 1L);
+    record.put("b", "hello");
+    record.put("c", ImmutableList.of(1, 2, 3));
+    Assert.assertEquals(8 + 10 + 17, WriterRollPolicy.sizeOf(record));
+  }
+}